@@ -0,0 +1,181 @@
+package com.fret.imd;
+
+import ij.*;
+import ij.process.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * JMH benchmarks for the IMD hot paths on synthetic stacks.
+ *
+ * Every benchmark reports a "pixels" counter, so the ops/s column of that
+ * counter is the pixel throughput. Run with "-prof gc" for allocation rates.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IMDBenchmark {
+
+    @Param({"8", "16", "32"})
+    public int bitDepth;
+
+    @Param({"512"})
+    public int size;
+
+    @Param({"16"})
+    public int slices;
+
+    @Param({"CFP (Donor)", "FRET", "Average (CFP+FRET)/2"})
+    public String maskSource;
+
+    private IMDEngine imd;
+    private IMDEngine imdTable;
+    private IMDEngine imdBinned;
+    private ChannelView fretView;
+    private ChannelView cfpView;
+    private float[] fretFloats;
+    private float[] cfpFloats;
+    private int[] rgbPixels;
+    private ExecutorService executor;
+    private ForkJoinPool pool;
+
+    private final float fRmin = 0.2f;
+    private final float fRrange = 2.3f;
+    private final float fDmin = 0f;
+    private float fDrange;
+
+    /**
+     * Per-invocation pixel counter (reported as pixels/s)
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Pixels {
+        public long pixels;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        ImageStack fret = new ImageStack(size, size);
+        ImageStack cfp = new ImageStack(size, size);
+        for (int s = 0; s < slices; s++) {
+            fret.addSlice(syntheticSlice(random));
+            cfp.addSlice(syntheticSlice(random));
+        }
+        fretView = ChannelView.of(new ImagePlus("FRET", fret));
+        cfpView = ChannelView.of(new ImagePlus("CFP", cfp));
+
+        IMDParameters params = IMDParameters.builder().maskSource(maskSource).lut("Fire").build();
+        imd = new IMDEngine(params);
+        imdTable = new IMDEngine(params.toBuilder().colorTable(true).build());
+        imdBinned = new IMDEngine(params.toBuilder().binning(2).build());
+
+        fretFloats = IMDEngine.getFloatPixels(fret.getProcessor(1));
+        cfpFloats = IMDEngine.getFloatPixels(cfp.getProcessor(1));
+        rgbPixels = new int[fretFloats.length];
+        fDrange = bitDepth == 8 ? 255f : bitDepth == 16 ? 6000f : 3f;
+
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+        pool.shutdown();
+    }
+
+    private ImageProcessor syntheticSlice(Random random) {
+        int n = size * size;
+        ImageProcessor ip;
+        if (bitDepth == 8) {
+            ip = new ByteProcessor(size, size);
+        } else if (bitDepth == 16) {
+            ip = new ShortProcessor(size, size);
+        } else {
+            ip = new FloatProcessor(size, size);
+        }
+        double max = bitDepth == 8 ? 255 : bitDepth == 16 ? 6000 : 3;
+        for (int i = 0; i < n; i++) {
+            ip.setf(i, (float) (random.nextDouble() * max));
+        }
+        return ip;
+    }
+
+    @Benchmark
+    public int[] processPixelArrays(Pixels counter) {
+        counter.pixels += fretFloats.length;
+        return imd.processPixelArrays(fretFloats, cfpFloats, fretFloats.length,
+                                      fRmin, fRrange, fDmin, fDrange);
+    }
+
+    @Benchmark
+    public int[] processPixelArraysReused(Pixels counter) {
+        counter.pixels += fretFloats.length;
+        return imd.processPixelArrays(fretFloats, cfpFloats, rgbPixels, fretFloats.length,
+                                      fRmin, fRrange, fDmin, fDrange);
+    }
+
+    @Benchmark
+    public int[] processProcessors(Pixels counter) {
+        counter.pixels += (long) size * size;
+        return imd.processProcessors(fretView.getProcessor(1), cfpView.getProcessor(1), size * size,
+                                     fRmin, fRrange, fDmin, fDrange);
+    }
+
+    @Benchmark
+    public int[] processProcessorsColorTable(Pixels counter) {
+        counter.pixels += (long) size * size;
+        return imdTable.processProcessors(fretView.getProcessor(1), cfpView.getProcessor(1), size * size,
+                                          fRmin, fRrange, fDmin, fDrange);
+    }
+
+    @Benchmark
+    public float[] getFloatPixels(Pixels counter) {
+        counter.pixels += (long) size * size;
+        return IMDEngine.getFloatPixels(fretView.getProcessor(1));
+    }
+
+    @Benchmark
+    public ImageStack processSingleThreaded(Pixels counter) {
+        counter.pixels += (long) size * size * slices;
+        ImageStack out = new ImageStack(size, size);
+        imd.processSingleThreaded(fretView, cfpView, null, 1, slices, out, 0, slices, size, size,
+                                  fRmin, fRrange, fDmin, fDrange);
+        return out;
+    }
+
+    @Benchmark
+    public ImageStack processMultiThreaded(Pixels counter) {
+        counter.pixels += (long) size * size * slices;
+        ImageStack out = new ImageStack(size, size);
+        imd.processMultiThreaded(fretView, cfpView, null, 1, slices, out, executor, 0, slices, size, size,
+                                 fRmin, fRrange, fDmin, fDrange);
+        return out;
+    }
+
+    @Benchmark
+    public ImageStack processTiled(Pixels counter) {
+        counter.pixels += (long) size * size * slices;
+        ImageStack out = new ImageStack(size, size);
+        imd.processTiled(fretView, cfpView, null, 1, slices, out, pool, 0, slices, size, size,
+                         fRmin, fRrange, fDmin, fDrange);
+        return out;
+    }
+
+    @Benchmark
+    public ImagePlus processIMD(Pixels counter) {
+        counter.pixels += (long) size * size * slices;
+        return imd.process(fretView, cfpView);
+    }
+
+    @Benchmark
+    public ImagePlus processIMDBinned(Pixels counter) {
+        counter.pixels += (long) size * size * slices;
+        return imdBinned.process(fretView, cfpView);
+    }
+}
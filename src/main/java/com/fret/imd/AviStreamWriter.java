@@ -0,0 +1,195 @@
+package com.fret.imd;
+
+import ij.io.FileSaver;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.*;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import javax.imageio.*;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * RGB AVI written one frame at a time.
+ *
+ * Frames are stored as uncompressed 24-bit DIBs or as JPEG (MJPG) images,
+ * at ImageJ's JPEG quality. The header is written up front with
+ * placeholder sizes; frame count, chunk sizes and the idx1 index are filled
+ * in when the writer is closed.
+ */
+final class AviStreamWriter extends IMDStreamWriter {
+
+    // Fixed header layout: RIFF/AVI, LIST hdrl (avih, LIST strl (strh, strf)), LIST movi
+    private static final int RIFF_SIZE = 4;
+    private static final int AVIH_TOTAL_FRAMES = 48;
+    private static final int AVIH_SUGGESTED_BUFFER = 60;
+    private static final int STRH_LENGTH = 140;
+    private static final int STRH_SUGGESTED_BUFFER = 144;
+    private static final int MOVI_SIZE = 216;
+    private static final int MOVI_FOURCC = 220;
+    private static final int HEADER_BYTES = 224;
+
+    private static final int AVIF_HASINDEX = 0x10;
+    private static final int AVIIF_KEYFRAME = 0x10;
+
+    private final boolean jpeg;
+    private final double fps;
+    private final int rowBytes;
+    private long[] chunkOffsets = new long[256];
+    private int[] chunkSizes = new int[256];
+    private int written;
+    private int maxChunk;
+
+    AviStreamWriter(File file, int width, int height, double fps, boolean jpeg, ExecutorService pool,
+                    int parallelism) throws IOException {
+        super(file, width, height, pool, parallelism);
+        this.fps = fps;
+        this.jpeg = jpeg;
+        this.rowBytes = (width * 3 + 3) & ~3;
+    }
+
+    @Override
+    void writeHeader() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        fourcc(b, "RIFF").putInt(0);
+        fourcc(b, "AVI ");
+        fourcc(b, "LIST").putInt(192);
+        fourcc(b, "hdrl");
+
+        fourcc(b, "avih").putInt(56);
+        b.putInt((int) Math.round(1e6 / fps));      // dwMicroSecPerFrame
+        b.putInt(0);                                 // dwMaxBytesPerSec
+        b.putInt(0);                                 // dwPaddingGranularity
+        b.putInt(AVIF_HASINDEX);                     // dwFlags
+        b.putInt(0);                                 // dwTotalFrames (patched)
+        b.putInt(0);                                 // dwInitialFrames
+        b.putInt(1);                                 // dwStreams
+        b.putInt(0);                                 // dwSuggestedBufferSize (patched)
+        b.putInt(width);
+        b.putInt(height);
+        b.putInt(0).putInt(0).putInt(0).putInt(0);   // dwReserved
+
+        fourcc(b, "LIST").putInt(116);
+        fourcc(b, "strl");
+        fourcc(b, "strh").putInt(56);
+        fourcc(b, "vids");
+        fourcc(b, jpeg ? "MJPG" : "DIB ");
+        b.putInt(0);                                 // dwFlags
+        b.putShort((short) 0).putShort((short) 0);   // wPriority, wLanguage
+        b.putInt(0);                                 // dwInitialFrames
+        b.putInt(100);                               // dwScale
+        b.putInt((int) Math.round(fps * 100));       // dwRate
+        b.putInt(0);                                 // dwStart
+        b.putInt(0);                                 // dwLength (patched)
+        b.putInt(0);                                 // dwSuggestedBufferSize (patched)
+        b.putInt(-1);                                // dwQuality
+        b.putInt(0);                                 // dwSampleSize
+        b.putShort((short) 0).putShort((short) 0);   // rcFrame
+        b.putShort((short) width).putShort((short) height);
+
+        fourcc(b, "strf").putInt(40);
+        b.putInt(40);                                // biSize
+        b.putInt(width);
+        b.putInt(height);
+        b.putShort((short) 1);                       // biPlanes
+        b.putShort((short) 24);                      // biBitCount
+        if (jpeg) fourcc(b, "MJPG"); else b.putInt(0);
+        b.putInt(jpeg ? 0 : rowBytes * height);      // biSizeImage
+        b.putInt(0).putInt(0).putInt(0).putInt(0);   // resolution, colours
+
+        fourcc(b, "LIST").putInt(0);                 // movi size (patched)
+        fourcc(b, "movi");
+        b.rewind();
+        append(b);
+    }
+
+    /**
+     * Complete '00db' / '00dc' chunk for one frame
+     */
+    @Override
+    byte[] encode(int[] rgb) throws IOException {
+        byte[] data = jpeg ? encodeJpeg(rgb) : encodeDib(rgb);
+        int padded = data.length + (data.length & 1);
+        ByteBuffer chunk = ByteBuffer.allocate(8 + padded).order(ByteOrder.LITTLE_ENDIAN);
+        fourcc(chunk, jpeg ? "00dc" : "00db").putInt(data.length);
+        chunk.put(data);
+        return chunk.array();
+    }
+
+    @Override
+    void writeFrame(byte[] chunk) throws IOException {
+        if (written == chunkOffsets.length) {
+            chunkOffsets = Arrays.copyOf(chunkOffsets, written * 2);
+            chunkSizes = Arrays.copyOf(chunkSizes, written * 2);
+        }
+        int size = ByteBuffer.wrap(chunk, 4, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        chunkOffsets[written] = channel.position() - MOVI_FOURCC;
+        chunkSizes[written] = size;
+        written++;
+        maxChunk = Math.max(maxChunk, size);
+        append(ByteBuffer.wrap(chunk));
+    }
+
+    @Override
+    void finish() throws IOException {
+        long moviEnd = channel.position();
+        ByteBuffer index = ByteBuffer.allocate(8 + 16 * written).order(ByteOrder.LITTLE_ENDIAN);
+        fourcc(index, "idx1").putInt(16 * written);
+        for (int i = 0; i < written; i++) {
+            fourcc(index, jpeg ? "00dc" : "00db");
+            index.putInt(AVIIF_KEYFRAME);
+            index.putInt((int) chunkOffsets[i]);
+            index.putInt(chunkSizes[i]);
+        }
+        index.rewind();
+        append(index);
+
+        long end = channel.position();
+        patchInt(RIFF_SIZE, end - 8);
+        patchInt(AVIH_TOTAL_FRAMES, written);
+        patchInt(AVIH_SUGGESTED_BUFFER, maxChunk + 8);
+        patchInt(STRH_LENGTH, written);
+        patchInt(STRH_SUGGESTED_BUFFER, maxChunk + 8);
+        patchInt(MOVI_SIZE, moviEnd - MOVI_FOURCC);
+    }
+
+    /**
+     * Bottom-up BGR rows padded to 4 bytes
+     */
+    private byte[] encodeDib(int[] rgb) {
+        byte[] dib = new byte[rowBytes * height];
+        for (int y = 0; y < height; y++) {
+            int src = (height - 1 - y) * width;
+            int dst = y * rowBytes;
+            for (int x = 0; x < width; x++, dst += 3) {
+                int c = rgb[src + x];
+                dib[dst] = (byte) c;
+                dib[dst + 1] = (byte) (c >> 8);
+                dib[dst + 2] = (byte) (c >> 16);
+            }
+        }
+        return dib;
+    }
+
+    private byte[] encodeJpeg(int[] rgb) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height, rgb, 0, width);
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (MemoryCacheImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(FileSaver.getJpegQuality() / 100f);
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    private static ByteBuffer fourcc(ByteBuffer b, String code) {
+        for (int i = 0; i < 4; i++) b.put((byte) code.charAt(i));
+        return b;
+    }
+}
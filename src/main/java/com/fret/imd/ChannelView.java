@@ -0,0 +1,167 @@
+package com.fret.imd;
+
+import ij.*;
+import ij.io.FileInfo;
+import ij.measure.Calibration;
+import ij.process.*;
+import java.io.File;
+import java.nio.Buffer;
+
+/**
+ * Read-only view of one channel of an image.
+ *
+ * Slices are addressed by a 1-based index over all Z and T positions of the
+ * channel and are read straight from the source ImageStack, so no pixel data
+ * is copied. Callers must not modify the returned processors; copy them first
+ * (e.g. for background subtraction).
+ *
+ * Virtual stacks opened from an uncompressed TIFF are additionally memory
+ * mapped, so the kernels can read their planes without loading them.
+ */
+final class ChannelView {
+
+    private final ImagePlus imp;
+    private final ImageStack stack;
+    private final int channel;      // 0 = whole stack (two-image mode)
+    private final int nZ;
+    private final int size;
+    private final MappedTiff mapped; // null unless a virtual stack from a mappable TIFF
+    private final int stackSize;     // Source stack size and file length when the view was made
+    private final long fileLength;
+
+    private ChannelView(ImagePlus imp, int channel, ChannelView previous) {
+        this.imp = imp;
+        this.stack = imp.getStack();
+        this.channel = channel;
+        this.nZ = imp.getNSlices();
+        this.size = channel == 0 ? imp.getStackSize() : imp.getNSlices() * imp.getNFrames();
+        this.stackSize = imp.getStackSize();
+        this.fileLength = fileLength(imp);
+        // An unchanged file keeps its mapping: parsing the IFDs again and mapping new
+        // buffers (released only by GC, and locking the file on Windows) is avoided
+        boolean sameFile = previous != null && previous.stackSize == stackSize && previous.fileLength == fileLength;
+        this.mapped = !stack.isVirtual() ? null : sameFile ? previous.mapped : MappedTiff.open(imp);
+    }
+
+    /**
+     * View over every slice of an image
+     */
+    static ChannelView of(ImagePlus imp) {
+        return new ChannelView(imp, 0, null);
+    }
+
+    /**
+     * View over one channel (all Z and T) of a multi-channel image
+     */
+    static ChannelView ofChannel(ImagePlus imp, int channel) {
+        return new ChannelView(imp, channel, null);
+    }
+
+    /**
+     * View reflecting the current size of the source (e.g. frames appended
+     * during acquisition): this view while neither the stack size nor the
+     * length of the source file has changed
+     */
+    ChannelView refreshed() {
+        if (imp.getStackSize() == stackSize && fileLength(imp) == fileLength) return this;
+        return new ChannelView(imp, channel, this);
+    }
+
+    /**
+     * Length of the file the image was opened from, or -1
+     */
+    private static long fileLength(ImagePlus imp) {
+        FileInfo fi = imp.getOriginalFileInfo();
+        if (fi == null || fi.directory == null || fi.fileName == null) return -1;
+        File file = new File(fi.directory, fi.fileName);
+        return file.isFile() ? file.length() : -1;
+    }
+
+    /**
+     * Index into the source stack for the n-th slice of this view (1-based)
+     */
+    int stackIndex(int n) {
+        if (channel == 0) return n;
+        int z = (n - 1) % nZ + 1;
+        int t = (n - 1) / nZ + 1;
+        return imp.getStackIndex(channel, z, t);
+    }
+
+    /**
+     * Processor sharing the source pixels of the n-th slice (do not modify)
+     */
+    ImageProcessor getProcessor(int n) {
+        if (stack.isVirtual()) {
+            // Virtual stacks read from disk and are not safe to access concurrently
+            synchronized (stack) {
+                return stack.getProcessor(stackIndex(n));
+            }
+        }
+        return stack.getProcessor(stackIndex(n));
+    }
+
+    /**
+     * Mapped pixels of the n-th slice (ByteBuffer, ShortBuffer or FloatBuffer);
+     * only valid when isMapped()
+     */
+    Buffer getMappedPlane(int n) {
+        return mapped.plane(stackIndex(n));
+    }
+
+    boolean isMapped() {
+        return mapped != null;
+    }
+
+    /**
+     * True when both views are mapped with the same pixel type, so the
+     * kernels can read them directly
+     */
+    static boolean mappedPair(ChannelView a, ChannelView b) {
+        return a.mapped != null && b.mapped != null
+            && a.mapped.getBytesPerPixel() == b.mapped.getBytesPerPixel();
+    }
+
+    /**
+     * Index in this view of the slice currently displayed in the source image
+     */
+    int currentIndex() {
+        if (channel == 0) return imp.getCurrentSlice();
+        return (imp.getT() - 1) * nZ + imp.getZ();
+    }
+
+    String getSliceLabel(int n) {
+        return stack.getSliceLabel(stackIndex(n));
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    int getWidth() {
+        return imp.getWidth();
+    }
+
+    int getHeight() {
+        return imp.getHeight();
+    }
+
+    int getBytesPerPixel() {
+        return imp.getBytesPerPixel();
+    }
+
+    boolean isVirtual() {
+        return stack.isVirtual();
+    }
+
+    Calibration getCalibration() {
+        return imp.getCalibration();
+    }
+
+    String getTitle() {
+        return channel == 0 ? imp.getTitle() : imp.getTitle() + " (C" + channel + ")";
+    }
+
+    ImagePlus getImage() {
+        return imp;
+    }
+}
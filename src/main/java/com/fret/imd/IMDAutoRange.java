@@ -0,0 +1,122 @@
+package com.fret.imd;
+
+import java.nio.*;
+
+/**
+ * Ratio and mask-source histograms for automatic range selection.
+ *
+ * Values are binned by their float bit pattern (sign, exponent and the top
+ * seven mantissa bits), so one fixed set of bins covers any range with a
+ * relative resolution better than 1% and no first pass for min/max is
+ * needed. Each worker thread fills its own instance; the instances are
+ * merged at the end and percentiles are interpolated within a bin.
+ */
+final class IMDAutoRange {
+
+    // Bins below HALF hold negative values, HALF and above non-negative ones
+    private static final int HALF = 1 << 15;
+    static final int BINS = 2 * HALF;
+
+    private final long[] ratio = new long[BINS];
+    private final long[] mask = new long[BINS];
+
+    /**
+     * Count pixels from, from + step, ... below to of one row. Pixels with a
+     * zero donor value (no valid ratio) only enter the mask histogram.
+     */
+    void add(Object fretPixels, Object cfpPixels, int from, int to, int step, int maskMode) {
+        if (fretPixels instanceof short[]) {
+            short[] f = (short[]) fretPixels, c = (short[]) cfpPixels;
+            for (int i = from; i < to; i += step) count(f[i] & 0xffff, c[i] & 0xffff, maskMode);
+        } else if (fretPixels instanceof byte[]) {
+            byte[] f = (byte[]) fretPixels, c = (byte[]) cfpPixels;
+            for (int i = from; i < to; i += step) count(f[i] & 0xff, c[i] & 0xff, maskMode);
+        } else if (fretPixels instanceof float[]) {
+            float[] f = (float[]) fretPixels, c = (float[]) cfpPixels;
+            for (int i = from; i < to; i += step) count(f[i], c[i], maskMode);
+        } else if (fretPixels instanceof ShortBuffer) {
+            ShortBuffer f = (ShortBuffer) fretPixels, c = (ShortBuffer) cfpPixels;
+            for (int i = from; i < to; i += step) count(f.get(i) & 0xffff, c.get(i) & 0xffff, maskMode);
+        } else if (fretPixels instanceof ByteBuffer) {
+            ByteBuffer f = (ByteBuffer) fretPixels, c = (ByteBuffer) cfpPixels;
+            for (int i = from; i < to; i += step) count(f.get(i) & 0xff, c.get(i) & 0xff, maskMode);
+        } else {
+            FloatBuffer f = (FloatBuffer) fretPixels, c = (FloatBuffer) cfpPixels;
+            for (int i = from; i < to; i += step) count(f.get(i), c.get(i), maskMode);
+        }
+    }
+
+    private void count(float fretVal, float cfpVal, int maskMode) {
+        if (cfpVal != 0) {
+            float r = fretVal / cfpVal;
+            if (r == r) ratio[bin(r)]++;
+        }
+        float m = maskMode == IMDEngine.MASK_FRET ? fretVal
+                : maskMode == IMDEngine.MASK_AVERAGE ? (cfpVal + fretVal) / 2.0f
+                : cfpVal;
+        if (m == m) mask[bin(m)]++;
+    }
+
+    /**
+     * Add the counts of another instance to this one
+     */
+    void merge(IMDAutoRange other) {
+        for (int i = 0; i < BINS; i++) {
+            ratio[i] += other.ratio[i];
+            mask[i] += other.mask[i];
+        }
+    }
+
+    /**
+     * Ratio at percentile p (0-100), NaN when no pixel had a valid ratio
+     */
+    double ratioPercentile(double p) {
+        return percentile(ratio, p);
+    }
+
+    /**
+     * Mask-source value at percentile p (0-100), NaN when nothing was counted
+     */
+    double maskPercentile(double p) {
+        return percentile(mask, p);
+    }
+
+    long ratioCount() {
+        long n = 0;
+        for (long c : ratio) n += c;
+        return n;
+    }
+
+    static int bin(float v) {
+        int bits = Float.floatToRawIntBits(v);
+        return bits >= 0 ? HALF + (bits >>> 16) : HALF - 1 - ((bits & 0x7fffffff) >>> 16);
+    }
+
+    /**
+     * Smallest value falling into bin b
+     */
+    static double lowerEdge(int b) {
+        return b >= HALF ? Float.intBitsToFloat((b - HALF) << 16)
+                         : -Float.intBitsToFloat((HALF - b) << 16);
+    }
+
+    private static double percentile(long[] bins, double p) {
+        long total = 0;
+        for (long c : bins) total += c;
+        if (total == 0) return Double.NaN;
+        double rank = Math.max(0, Math.min(100, p)) / 100.0 * total;
+        long seen = 0;
+        for (int b = 0; b < BINS; b++) {
+            long c = bins[b];
+            if (c == 0) continue;
+            if (seen + c >= rank) {
+                double lo = lowerEdge(b);
+                double hi = b + 1 < BINS ? lowerEdge(b + 1) : lo;
+                if (Double.isInfinite(lo) || Double.isInfinite(hi) || Double.isNaN(hi)) return lo;
+                return lo + (hi - lo) * Math.max(0, rank - seen) / c;
+            }
+            seen += c;
+        }
+        return lowerEdge(BINS - 1);
+    }
+}
@@ -0,0 +1,80 @@
+package com.fret.imd;
+
+import ij.plugin.filter.*;
+import ij.process.*;
+
+/**
+ * In-process background subtraction of single slices.
+ *
+ * The background is estimated on a float copy of the raw slice values
+ * (optionally pre-smoothed with a Gaussian, as the smoothing sigma of
+ * Subtract Background Plus did) with ImageJ's sliding paraboloid or rolling
+ * ball (BackgroundSubtracter, which shrinks the image for the rolling ball
+ * above a radius of 10), or by a grey-scale opening with a flat disk
+ * (RankFilters), and subtracted from the raw values into a copy of the
+ * slice. A calibration table is ignored, as the kernels read raw values too.
+ * The source is never modified, and the float working copy is a per-thread
+ * buffer reused from slice to slice. Integer results are rounded and clamped
+ * to the pixel range as ImageJ's Subtract Background does. Instances are
+ * immutable and can be shared between threads.
+ */
+final class IMDBackground {
+
+    static final int PARABOLOID = 0;
+    static final int ROLLING_BALL = 1;
+    static final int OPENING = 2;
+
+    private final int method;
+    private final double radius;
+    private final double smoothing;
+
+    IMDBackground(int method, double radius, double smoothing) {
+        this.method = method;
+        this.radius = radius;
+        this.smoothing = smoothing;
+    }
+
+    /**
+     * Copy of ip with the background subtracted
+     */
+    ImageProcessor subtract(ImageProcessor ip) {
+        // The estimate is only read back below, so it lives in the thread's scratch buffer.
+        // Raw values, not calibrated ones: the result is subtracted from the raw pixels
+        FloatProcessor bg = IMDScratch.floatCopy(ip);
+        if (smoothing > 0) {
+            new GaussianBlur().blurGaussian(bg, smoothing, smoothing, 0.002);
+        }
+        if (method == OPENING) {
+            new RankFilters().rank(bg, radius, RankFilters.OPEN);
+        } else {
+            BackgroundSubtracter bs = new BackgroundSubtracter();
+            bs.setNPasses(0);   // no progress bar from worker threads
+            bs.rollingBallBackground(bg, radius, true, false, method == PARABOLOID, false, true);
+        }
+
+        float[] b = (float[]) bg.getPixels();
+        if (ip instanceof ShortProcessor) {
+            short[] src = (short[]) ip.getPixels();
+            short[] dst = new short[src.length];
+            for (int i = 0; i < dst.length; i++) {
+                float v = (src[i] & 0xffff) - b[i] + 0.5f;
+                dst[i] = (short) (v < 0f ? 0f : v > 65535f ? 65535f : v);
+            }
+            return new ShortProcessor(ip.getWidth(), ip.getHeight(), dst, null);
+        }
+        if (ip instanceof ByteProcessor) {
+            byte[] src = (byte[]) ip.getPixels();
+            byte[] dst = new byte[src.length];
+            for (int i = 0; i < dst.length; i++) {
+                float v = (src[i] & 0xff) - b[i] + 0.5f;
+                dst[i] = (byte) (v < 0f ? 0f : v > 255f ? 255f : v);
+            }
+            return new ByteProcessor(ip.getWidth(), ip.getHeight(), dst);
+        }
+        float[] src = IMDEngine.getFloatPixels(ip);
+        for (int i = 0; i < src.length; i++) {
+            src[i] -= b[i];
+        }
+        return new FloatProcessor(ip.getWidth(), ip.getHeight(), src);
+    }
+}
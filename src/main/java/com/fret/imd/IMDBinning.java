@@ -0,0 +1,90 @@
+package com.fret.imd;
+
+import java.awt.Rectangle;
+import java.nio.*;
+import java.util.Arrays;
+
+/**
+ * Block summation of raw pixel counts for the binned (overview) mode.
+ *
+ * Each factor x factor block of a plane (or of a rectangle of it, for ROI
+ * processing) is summed straight from the source pixels (arrays or
+ * memory-mapped buffers) into a float plane of (width / factor) x
+ * (height / factor) pixels; columns and rows that do not fill a whole block
+ * are dropped, as in Image > Transform > Bin. A factor of 1 copies the
+ * rectangle as floats. Integer sums are exact (at most 16 x 65535), so the
+ * ratio of two binned planes is the ratio of the summed counts.
+ */
+final class IMDBinning {
+
+    static final int MAX_FACTOR = 4;
+
+    private IMDBinning() {
+    }
+
+    /**
+     * Sum the factor x factor blocks of rectangle r of pixels (byte[], short[],
+     * float[] or a mapped buffer of a plane width pixels wide) into dst, at
+     * least (r.width / factor) * (r.height / factor) long
+     */
+    static float[] sum(Object pixels, int width, Rectangle r, int factor, float[] dst) {
+        int bw = r.width / factor, bh = r.height / factor;
+        for (int by = 0; by < bh; by++) {
+            int out = by * bw;
+            Arrays.fill(dst, out, out + bw, 0f);
+            for (int dy = 0; dy < factor; dy++) {
+                addRow(pixels, (r.y + by * factor + dy) * width + r.x, dst, out, bw, factor);
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * Add bw blocks of one source row (starting at pixel row) to dst[out..out+bw)
+     */
+    private static void addRow(Object pixels, int row, float[] dst, int out, int bw, int factor) {
+        if (pixels instanceof short[]) {
+            short[] src = (short[]) pixels;
+            for (int bx = 0, i = row; bx < bw; bx++) {
+                int s = 0;
+                for (int dx = 0; dx < factor; dx++, i++) s += src[i] & 0xffff;
+                dst[out + bx] += s;
+            }
+        } else if (pixels instanceof byte[]) {
+            byte[] src = (byte[]) pixels;
+            for (int bx = 0, i = row; bx < bw; bx++) {
+                int s = 0;
+                for (int dx = 0; dx < factor; dx++, i++) s += src[i] & 0xff;
+                dst[out + bx] += s;
+            }
+        } else if (pixels instanceof float[]) {
+            float[] src = (float[]) pixels;
+            for (int bx = 0, i = row; bx < bw; bx++) {
+                float s = 0;
+                for (int dx = 0; dx < factor; dx++, i++) s += src[i];
+                dst[out + bx] += s;
+            }
+        } else if (pixels instanceof ShortBuffer) {
+            ShortBuffer src = (ShortBuffer) pixels;
+            for (int bx = 0, i = row; bx < bw; bx++) {
+                int s = 0;
+                for (int dx = 0; dx < factor; dx++, i++) s += src.get(i) & 0xffff;
+                dst[out + bx] += s;
+            }
+        } else if (pixels instanceof ByteBuffer) {
+            ByteBuffer src = (ByteBuffer) pixels;
+            for (int bx = 0, i = row; bx < bw; bx++) {
+                int s = 0;
+                for (int dx = 0; dx < factor; dx++, i++) s += src.get(i) & 0xff;
+                dst[out + bx] += s;
+            }
+        } else {
+            FloatBuffer src = (FloatBuffer) pixels;
+            for (int bx = 0, i = row; bx < bw; bx++) {
+                float s = 0;
+                for (int dx = 0; dx < factor; dx++, i++) s += src.get(i);
+                dst[out + bx] += s;
+            }
+        }
+    }
+}
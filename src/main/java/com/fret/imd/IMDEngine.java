@@ -0,0 +1,1621 @@
+package com.fret.imd;
+
+import ij.*;
+import ij.io.FileInfo;
+import ij.measure.Calibration;
+import ij.plugin.*;
+import ij.process.*;
+import java.awt.Rectangle;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Headless IMD engine.
+ *
+ * Renders FRET/CFP ratio images modulated by intensity from ImagePlus,
+ * ImageStack or ImageProcessor inputs with a fixed set of IMDParameters,
+ * without dialogs or WindowManager lookups. The LUT and colour table are
+ * resolved when the engine is created. An engine is immutable and
+ * thread-safe: every call renders on a per-run engine of its own that holds
+ * the working state of that run (metrics, BG cache, ROI, temporal window),
+ * so one instance can serve several threads at once. Concurrent runs share
+ * the plugin-wide worker pool, LUT registry and BG cache, and ImageJ's
+ * Escape flag is global: every run clears it when it starts, and Escape
+ * cancels all runs in progress.
+ *
+ * Invalid inputs are reported with IllegalArgumentException; processing
+ * errors are rethrown as unchecked exceptions. Progress and the run log
+ * go to the ImageJ status bar and log window (or stdout when headless).
+ */
+public final class IMDEngine {
+
+    static final int MASK_CFP = 0;
+    static final int MASK_FRET = 1;
+    static final int MASK_AVERAGE = 2;
+
+    // Smallest row band worth scheduling on its own in tile-parallel mode
+    private static final int MIN_BAND_PIXELS = 1 << 16;
+
+    // Minimum slices per channel read ahead from disk-backed (virtual) sources
+    private static final int READ_AHEAD_SLICES = 4;
+
+    private final IMDParameters params;
+    private final int maskMode;
+    private final int bin;
+
+    // LUT tables, and packed RGB for 256 ratio bins x 256 mask bins (null = exact per-pixel path)
+    private final byte[] lutReds;
+    private final byte[] lutGreens;
+    private final byte[] lutBlues;
+    private final int[] colorTable;
+
+    // Working state of one run, null on the shared engine: stage timing, the
+    // BG cache in use (null = disabled), the ROI rendered (null = whole image)
+    // and the temporal window (null = off; frames are then rendered in order)
+    private final IMDMetrics metrics;
+    private final IMDPlaneCache planeCache;
+    private final IMDRegion region;
+    private final IMDTemporalFilter temporal;
+
+    public IMDEngine(IMDParameters params) {
+        this.params = params;
+        this.maskMode = maskMode(params.getMaskSource());
+        this.bin = params.getBinning();
+        byte[][] rgb = IMDLuts.get(params.getLut());
+        if (rgb == null) {
+            IJ.log("Warning: Could not load LUT '" + params.getLut() + "', using Fire");
+            rgb = IMDLuts.get("Fire");
+        }
+        lutReds = rgb[0];
+        lutGreens = rgb[1];
+        lutBlues = rgb[2];
+        colorTable = params.isColorTable() ? buildColorTable(lutReds, lutGreens, lutBlues) : null;
+        metrics = null;
+        planeCache = null;
+        region = null;
+        temporal = null;
+    }
+
+    /**
+     * Fresh working state for one run over region (null = whole image) with
+     * the given temporal window (null = off), sharing the LUT and colour
+     * table of engine; params may differ from the engine's only in output
+     * options, binning and ROI
+     */
+    private IMDEngine(IMDEngine engine, IMDParameters params, IMDRegion region, IMDTemporalFilter temporal) {
+        this.params = params;
+        this.maskMode = engine.maskMode;
+        this.bin = params.getBinning();
+        this.lutReds = engine.lutReds;
+        this.lutGreens = engine.lutGreens;
+        this.lutBlues = engine.lutBlues;
+        this.colorTable = engine.colorTable;
+        this.metrics = new IMDMetrics();
+        this.planeCache = configurePlaneCache(params);
+        this.region = region;
+        this.temporal = temporal;
+    }
+
+    /**
+     * Per-run engine rendering the sources with params: the ROI is taken from
+     * them, and for a stack the temporal window is sized to the output
+     */
+    private IMDEngine run(IMDParameters params, ChannelView fret, ChannelView cfp) {
+        IMDRegion region = region(params, fret, cfp);
+        int nSlices = params.isTestMode() ? 1 : fret.getSize();
+        int width = (region != null ? region.bounds.width : fret.getWidth()) / params.getBinning();
+        int height = (region != null ? region.bounds.height : fret.getHeight()) / params.getBinning();
+        IMDTemporalFilter temporal = nSlices > 1 ? temporalFilter(params, width * height) : null;
+        return new IMDEngine(this, params, region, temporal);
+    }
+
+    public IMDParameters getParameters() {
+        return params;
+    }
+
+    /**
+     * Render a FRET and a CFP image (single images or stacks of the same size).
+     * Returns the RGB result, or null when cancelled before any slice was done.
+     */
+    public ImagePlus process(ImagePlus fret, ImagePlus cfp) {
+        ChannelView[] views = views(fret, cfp);
+        return process(views[0], views[1]);
+    }
+
+    /**
+     * Render the acceptor and donor channels (getAcceptorChannel/getDonorChannel)
+     * of a multi-channel stack
+     */
+    public ImagePlus process(ImagePlus multiChannel) {
+        ChannelView[] views = views(multiChannel, params.getAcceptorChannel(), params.getDonorChannel());
+        return process(views[0], views[1]);
+    }
+
+    /**
+     * Render two stacks of the same size into an RGB stack (always held in
+     * memory: virtual and streamed output are not used)
+     */
+    public ImageStack process(ImageStack fret, ImageStack cfp) {
+        IMDParameters inMemory = params.toBuilder().virtualOutput(false).streamOutput(IMDStreamWriter.NONE).build();
+        ChannelView[] views = views(new ImagePlus("FRET", fret), new ImagePlus("CFP", cfp));
+        ImagePlus result = run(inMemory, views[0], views[1]).processIMD(views[0], views[1]);
+        return result != null ? result.getStack() : null;
+    }
+
+    /**
+     * Render a single FRET/CFP image pair
+     */
+    public ColorProcessor process(ImageProcessor fret, ImageProcessor cfp) {
+        ImageStack fretStack = new ImageStack(fret.getWidth(), fret.getHeight());
+        ImageStack cfpStack = new ImageStack(cfp.getWidth(), cfp.getHeight());
+        fretStack.addSlice(fret);
+        cfpStack.addSlice(cfp);
+        ImageStack result = process(fretStack, cfpStack);
+        return result != null ? (ColorProcessor) result.getProcessor(1) : null;
+    }
+
+    /**
+     * Settings with the ratio and intensity ranges taken from the percentiles
+     * of the data (see IMDParameters.Builder.autoPercentiles), or null if cancelled
+     */
+    public IMDParameters autoRange(ImagePlus fret, ImagePlus cfp) {
+        ChannelView[] views = views(fret, cfp);
+        return autoRange(views[0], views[1]);
+    }
+
+    /**
+     * Render the sources on a fresh working state (used by the plugin and IMD_Batch)
+     */
+    ImagePlus process(ChannelView fret, ChannelView cfp) {
+        return run(params, fret, cfp).processIMD(fret, cfp);
+    }
+
+    /**
+     * Channel views of two separate images, validated for processing
+     */
+    static ChannelView[] views(ImagePlus fret, ImagePlus cfp) {
+        if (fret == cfp) {
+            throw new IllegalArgumentException("Please select different images for FRET and CFP.");
+        }
+        if (fret.getWidth() != cfp.getWidth() || fret.getHeight() != cfp.getHeight()) {
+            throw new IllegalArgumentException("FRET and CFP must have the same dimensions.");
+        }
+        return views(ChannelView.of(fret), ChannelView.of(cfp));
+    }
+
+    /**
+     * Channel views of the acceptor and donor channels of a multi-channel stack
+     */
+    static ChannelView[] views(ImagePlus multiChannel, int acceptorChannel, int donorChannel) {
+        int channels = multiChannel.getNChannels();
+        if (channels < 2) {
+            throw new IllegalArgumentException("Selected image has only " + channels
+                                               + " channel(s). Need at least 2.");
+        }
+        if (acceptorChannel < 1 || acceptorChannel > channels || donorChannel < 1 || donorChannel > channels) {
+            throw new IllegalArgumentException("Channel numbers must be between 1 and " + channels + ".");
+        }
+        if (acceptorChannel == donorChannel) {
+            throw new IllegalArgumentException("Acceptor and Donor channels must be different.");
+        }
+        return views(ChannelView.ofChannel(multiChannel, acceptorChannel),
+                     ChannelView.ofChannel(multiChannel, donorChannel));
+    }
+
+    private static ChannelView[] views(ChannelView fret, ChannelView cfp) {
+        if (fret.getSize() != cfp.getSize()) {
+            throw new IllegalArgumentException("FRET and CFP must have the same number of slices.");
+        }
+        return new ChannelView[] {fret, cfp};
+    }
+
+    /**
+     * Main IMD processing - chunked so that peak memory does not grow with stack length
+     */
+    private ImagePlus processIMD(ChannelView fretOrig, ChannelView cfpOrig) {
+        IJ.log("\n=== IMD Processing Started ===");
+        IJ.log("FRET: " + fretOrig.getTitle() + ", CFP: " + cfpOrig.getTitle());
+        IJ.log("Ratio range: " + params.getRmin() + " to " + params.getRmax());
+        IJ.log("Intensity range: " + params.getDmin() + " to " + params.getDmax());
+        IJ.log("Mask source: " + params.getMaskSource());
+        IJ.log("LUT: " + params.getLut());
+        
+        // Only the bounding box of the ROI is read and rendered
+        if (region != null) {
+            IJ.log("ROI: " + region.describe());
+        } else if (params.isRestrictToRoi()) {
+            IJ.log("No area ROI on the FRET or CFP image: processing the whole image");
+        }
+        
+        // Binned output: each pixel sums a bin x bin block of the sources
+        int width = outputWidth(fretOrig);
+        int height = outputHeight(fretOrig);
+        if (width == 0 || height == 0) {
+            throw new IllegalArgumentException("Image is smaller than the " + bin + "x" + bin + " binning.");
+        }
+        if (bin > 1) IJ.log("Binning: " + bin + "x" + bin + " (output " + width + "x" + height + ")");
+        int nSlices = fretOrig.getSize();
+        boolean isStack = nSlices > 1;
+        
+        if (params.isTestMode() && isStack) {
+            IJ.log("*** TEST MODE: first frame only ***");
+            nSlices = 1;
+        }
+        
+        // Work out memory needs up front and pick a chunk size that fits the budget
+        long bytesPerSlice = estimateBytesPerSlice(fretOrig, cfpOrig, params.isSubtractBackground());
+        long outputBytes = 4L * width * height * nSlices;
+        long budget = resolveMemoryBudget();
+        if (params.isSubtractBackground() && params.getBgCacheMB() > 0) {
+            // The BG cache stays on the heap across runs and may fill up to its limit
+            budget = Math.max(0, budget - (long) (params.getBgCacheMB() * 1024 * 1024));
+        }
+        int chunkSize = chooseChunkSize(bytesPerSlice, budget, nSlices);
+        IJ.log("Memory: " + toMB(bytesPerSlice) + " MB working set per slice, "
+               + toMB(outputBytes) + " MB output, budget " + toMB(budget) + " MB");
+        IJ.log("Chunk size: " + chunkSize + " slice(s)");
+        if (outputBytes > IJ.maxMemory() - IJ.currentMemory()) {
+            IJ.log("Warning: output stack (" + toMB(outputBytes) + " MB) may not fit in free memory");
+        }
+        
+        if (colorTable != null) IJ.log("Using 256x256 colour table");
+        else IJ.log("Kernel: " + VectorKernel.describe());
+        
+        // Background-subtracted planes of earlier runs are reused
+        if (planeCache != null) planeCache.resetCounters();
+        
+        // Pre-calculate constants (using float for precision - bug fix)
+        final float fRmin = (float) params.getRmin();
+        final float fRrange = (float) (params.getRmax() - params.getRmin());
+        final float fDmin = maskScale() * (float) params.getDmin();
+        final float fDrange = maskScale() * (float) (params.getDmax() - params.getDmin());
+        
+        String title = "IMD-Rmax" + params.getRmax() + "-Rmin" + params.getRmin() + 
+                      "-Dmax" + (int)params.getDmax() + "-Dmin" + (int)params.getDmin() + "-" + params.getLut()
+                      + (bin > 1 ? "-bin" + bin : "");
+        
+        // Running mean/median over the last frames, updated frame by frame
+        if (temporal != null) {
+            IJ.log("Temporal smoothing: " + params.getTemporalFilter().toLowerCase(Locale.US) + " of "
+                   + temporal.window() + " frames (" + (params.isTemporalMask() ? "ratio and mask" : "ratio")
+                   + "), " + toMB(temporal.bytes()) + " MB window");
+            if (params.isVirtualOutput()) {
+                IJ.log("Virtual output is not available with temporal smoothing; frames are rendered in order");
+            }
+        }
+        
+        // Virtual output: frames are rendered on demand when displayed
+        if (params.isVirtualOutput() && nSlices > 1 && temporal == null) {
+            long cacheBytes = (long) (params.getFrameCacheMB() * 1024 * 1024);
+            IJ.log("Virtual output: frames rendered on demand, cache " + toMB(cacheBytes) + " MB");
+            ForkJoinPool pool = params.isMultiThreaded() ? IMDExecutor.getPool(params.getThreads()) : null;
+            IMDVirtualStack vstack = new IMDVirtualStack(this, fretOrig, cfpOrig, nSlices, cacheBytes, pool,
+                                                         fRmin, fRrange, fDmin, fDrange);
+            ImagePlus output = new ImagePlus(title, vstack);
+            output.setCalibration(calibration(fretOrig));
+            IJ.showStatus("IMD complete (virtual)");
+            return output;
+        }
+        
+        // Create output stack; when streaming, frames are written to disk instead of kept
+        IMDStreamWriter stream = null;
+        if (streaming()) {
+            stream = openStream(fretOrig, title, width, height);
+        }
+        ImageStack outputStack = stream != null ? stream.stack() : new ImageStack(width, height);
+        
+        // Slice-parallel for long stacks; split each slice into row bands when
+        // there are fewer slices than threads and the image is large enough.
+        // The temporal window needs the frames in order, so it always uses bands.
+        int nThreads = IMDExecutor.resolveParallelism(params.getThreads());
+        boolean tiled = params.isMultiThreaded() && (temporal != null ? nThreads > 1 : nSlices < nThreads
+                        && (long) width * height >= 2L * MIN_BAND_PIXELS);
+        boolean multiThreaded = params.isMultiThreaded() && !tiled && nSlices > 1 && temporal == null;
+        ForkJoinPool pool = null;
+        if (tiled) {
+            pool = IMDExecutor.getPool(params.getThreads());
+            IJ.log("Using " + nThreads + " threads (row bands within each slice)");
+        } else if (multiThreaded) {
+            pool = IMDExecutor.getPool(params.getThreads());
+            IJ.log("Using " + nThreads + " threads");
+        }
+        
+        metrics.begin(pool != null ? nThreads : 1);
+        
+        // Escape cancels the run (and any other in progress: ImageJ's flag is global);
+        // slices finished so far are kept
+        IJ.resetEscape();
+        boolean completed = true;
+        
+        // Closing the stream waits for the writer to store the queued frames
+        try {
+            for (int first = 1; first <= nSlices && completed; first += chunkSize) {
+                int last = Math.min(nSlices, first + chunkSize - 1);
+                completed = processChunk(fretOrig, cfpOrig, first, last, nSlices, outputStack,
+                                         pool, tiled, multiThreaded, fRmin, fRrange, fDmin, fDrange);
+            }
+        } finally {
+            if (stream != null) stream.close();
+        }
+        
+        if (!completed) {
+            IJ.log("*** Cancelled: " + outputStack.getSize() + " of " + nSlices + " slices processed ***");
+            IJ.showProgress(1.0);
+            IJ.showStatus("IMD cancelled");
+            if (outputStack.getSize() == 0) {
+                if (stream != null) stream.file.delete();
+                return null;
+            }
+        }
+        
+        // Create output image (streamed output is reopened from disk as a virtual stack)
+        ImagePlus output;
+        long t = metrics.start();
+        try {
+            output = stream != null ? openStreamed(stream, title) : new ImagePlus(title, outputStack);
+            if (output == null) return null;
+            output.setCalibration(calibration(fretOrig));
+        } finally {
+            metrics.stop(IMDMetrics.Stage.ASSEMBLY, t, 0);
+        }
+        
+        metrics.finish((long) outputStack.getSize() * width * height);
+        metrics.log();
+        if (planeCache != null) IJ.log("BG cache: " + planeCache.summary());
+        if (params.isExportMetrics()) exportMetrics(fretOrig, title);
+        
+        IJ.showProgress(1.0);
+        IJ.showStatus("IMD complete");
+        
+        return output;
+    }
+    
+    /**
+     * Process slices first..last of the sources (background subtraction included)
+     * and append the results to outputStack. Returns false if cancelled.
+     */
+    private boolean processChunk(ChannelView fretOrig, ChannelView cfpOrig, int first, int last,
+                                 int nSlices, ImageStack outputStack,
+                                 ForkJoinPool pool, boolean tiled, boolean multiThreaded,
+                                 float fRmin, float fRrange, float fDmin, float fDrange) {
+        int width = outputWidth(fretOrig);
+        int height = outputHeight(fretOrig);
+        
+        // Slices are read in place. Background subtraction (important: BEFORE the
+        // mask is taken) runs per slice on copies, inside the task that renders it
+        if (params.isSubtractBackground() && first == 1) {
+            IJ.log("Subtracting background: " + params.getBgMethod()
+                   + " (radius=" + params.getBgRadius() + ", smoothing=" + params.getBgSmoothing() + ")...");
+        }
+        
+        // Disk-backed sources: reader threads load upcoming slices while earlier ones are computed
+        // (memory-mapped sources are read in place by the kernels instead)
+        SlicePrefetcher prefetcher = null;
+        if ((fretOrig.isVirtual() || cfpOrig.isVirtual())
+                && (params.isSubtractBackground() || !ChannelView.mappedPair(fretOrig, cfpOrig))) {
+            int threads = tiled || multiThreaded ? pool.getParallelism() : 1;
+            prefetcher = new SlicePrefetcher(fretOrig, cfpOrig, first, last,
+                                             Math.max(READ_AHEAD_SLICES, 2 * threads), metrics);
+        }
+        
+        // Tile-parallel, multi-threaded or single-threaded processing
+        boolean completed;
+        try {
+            if (tiled) {
+                completed = processTiled(fretOrig, cfpOrig, prefetcher, first, last, outputStack, pool,
+                                         first - 1, nSlices, width, height,
+                                         fRmin, fRrange, fDmin, fDrange);
+            } else if (multiThreaded) {
+                completed = processMultiThreaded(fretOrig, cfpOrig, prefetcher, first, last, outputStack, pool,
+                                                 first - 1, nSlices, width, height,
+                                                 fRmin, fRrange, fDmin, fDrange);
+            } else {
+                completed = processSingleThreaded(fretOrig, cfpOrig, prefetcher, first, last, outputStack,
+                                                  first - 1, nSlices, width, height,
+                                                  fRmin, fRrange, fDmin, fDrange);
+            }
+        } finally {
+            if (prefetcher != null) prefetcher.close();
+        }
+        return completed;
+    }
+    
+    /**
+     * Render one frame (background subtraction included) without progress
+     * reporting. Large frames are split into row bands when called from
+     * outside the pool; used by the virtual output stack.
+     */
+    int[] renderFrame(ChannelView fretView, ChannelView cfpView, int n, ForkJoinPool pool,
+                      float fRmin, float fRrange, float fDmin, float fDrange) {
+        int width = outputWidth(fretView);
+        int height = outputHeight(fretView);
+        IMDScratch scratch = IMDScratch.acquire();
+        try {
+            Object[] inputs = sliceInputs(null, fretView, cfpView, n, pool, scratch);
+            
+            int size = width * height;
+            if (pool != null && !ForkJoinTask.inForkJoinPool() && size >= 2 * MIN_BAND_PIXELS) {
+                int[] rgbPixels = new int[size];
+                pool.invoke(new BandTask(inputs[0], inputs[1], rgbPixels, width, 0, height,
+                                         bandRows(width, height, pool.getParallelism()),
+                                         fRmin, fRrange, fDmin, fDrange));
+                return rgbPixels;
+            }
+            return processInputs(inputs, size, fRmin, fRrange, fDmin, fDrange);
+        } finally {
+            scratch.release();
+        }
+    }
+    
+    /**
+     * Render frames first..last of the sources (background subtraction
+     * included) into added, splitting each frame into row bands; used for the
+     * frames appended in watch mode. region (from region(), may be null) is
+     * the ROI of the first run; temporal (from temporalFilter(), may be null)
+     * carries the window from call to call, and an empty one is first filled
+     * with the frames before first. Returns false if cancelled.
+     */
+    boolean processFrames(ChannelView fretView, ChannelView cfpView, int first, int last, ImageStack added,
+                          IMDRegion region, IMDTemporalFilter temporal) {
+        boolean tiled = params.isMultiThreaded() && IMDExecutor.resolveParallelism(params.getThreads()) > 1
+                        && (long) fretView.getWidth() * fretView.getHeight() >= 2L * MIN_BAND_PIXELS;
+        ForkJoinPool pool = tiled ? IMDExecutor.getPool(params.getThreads()) : null;
+        IMDEngine run = new IMDEngine(this, params, region, temporal);
+        if (temporal != null && temporal.frames() == 0) {
+            run.fillWindow(fretView, cfpView, Math.max(1, first - temporal.window() + 1), first - 1);
+        }
+        return run.processChunk(fretView, cfpView, first, last, last, added, pool, tiled, false,
+                                (float) params.getRmin(), (float) (params.getRmax() - params.getRmin()),
+                                maskScale() * (float) params.getDmin(),
+                                maskScale() * (float) (params.getDmax() - params.getDmin()));
+    }
+    
+    /**
+     * Factor applied to the intensity range: a binned mask value sums bin x bin
+     * pixels, so the range still refers to the mean of the block
+     */
+    private float maskScale() {
+        return bin * bin;
+    }
+    
+    /**
+     * Calibration of the source, for the output cropped to the ROI and binned
+     */
+    private Calibration calibration(ChannelView source) {
+        Calibration cal = source.getCalibration().copy();
+        int x = region != null ? region.bounds.x : 0;
+        int y = region != null ? region.bounds.y : 0;
+        cal.xOrigin = (cal.xOrigin - x) / bin;
+        cal.yOrigin = (cal.yOrigin - y) / bin;
+        cal.pixelWidth *= bin;
+        cal.pixelHeight *= bin;
+        return cal;
+    }
+    
+    /**
+     * ROI to restrict processing to, or null for the whole image (or when
+     * isRestrictToRoi is off)
+     */
+    IMDRegion region(ChannelView fretView, ChannelView cfpView) {
+        return region(params, fretView, cfpView);
+    }
+    
+    private static IMDRegion region(IMDParameters params, ChannelView fretView, ChannelView cfpView) {
+        return params.isRestrictToRoi() ? IMDRegion.of(fretView, cfpView, params.getBinning()) : null;
+    }
+    
+    /**
+     * Output size: the source or ROI bounds, divided by the binning
+     */
+    int outputWidth(ChannelView source) {
+        return (region != null ? region.bounds.width : source.getWidth()) / bin;
+    }
+    
+    int outputHeight(ChannelView source) {
+        return (region != null ? region.bounds.height : source.getHeight()) / bin;
+    }
+    
+    /**
+     * Temporal window for frames of size pixels, or null when smoothing is off
+     */
+    IMDTemporalFilter temporalFilter(int size) {
+        return temporalFilter(params, size);
+    }
+    
+    private static IMDTemporalFilter temporalFilter(IMDParameters params, int size) {
+        if (params.getTemporalWindow() <= 1) return null;
+        return new IMDTemporalFilter(IMDParameters.temporalFilterIndex(params.getTemporalFilter()),
+                                     params.getTemporalWindow(), size, params.isTemporalMask());
+    }
+    
+    /**
+     * Add frames first..last to the temporal window without rendering them
+     */
+    private void fillWindow(ChannelView fretView, ChannelView cfpView, int first, int last) {
+        int size = outputWidth(fretView) * outputHeight(fretView);
+        for (int s = first; s <= last; s++) {
+            IMDScratch scratch = IMDScratch.acquire();
+            try {
+                Object[] inputs = sliceInputs(null, fretView, cfpView, s, null, scratch);
+                temporal.next();
+                processSmoothedPixels(inputs[0], inputs[1], null, 0, size, 0, 0, 0, 0);
+            } finally {
+                scratch.release();
+            }
+        }
+    }
+    
+    /**
+     * Slice n of both sources as the kernels see it (background-subtracted
+     * through the BG cache when enabled, so a later run reuses it)
+     */
+    ImageProcessor[] frame(ChannelView fretView, ChannelView cfpView, int n) {
+        ImageProcessor[] ips = {fretView.getProcessor(n), cfpView.getProcessor(n)};
+        if (!params.isSubtractBackground()) return ips;
+        IMDEngine run = new IMDEngine(this, params, null, null);
+        return run.subtractedSlices(ips, fretView, cfpView, n, IMDExecutor.getPool(params.getThreads()));
+    }
+    
+    /**
+     * Settings with rmin/rmax and dmin/dmax set from percentiles of the ratio
+     * and mask-source histograms of every slice (first slice in test mode;
+     * only the ROI with Restrict to ROI), built in one pass, or null if
+     * cancelled. Slices are striped over the
+     * worker threads, or the rows of each slice when there are fewer slices
+     * than threads; every worker fills its own histograms, merged at the end.
+     */
+    IMDParameters autoRange(ChannelView fretView, ChannelView cfpView) {
+        // Limits refer to full-resolution pixels, also when the output is binned
+        IMDParameters full = params.toBuilder().binning(1).build();
+        IMDParameters range = new IMDEngine(this, full, region(full, fretView, cfpView), null)
+                .rangeFromHistograms(fretView, cfpView);
+        return range != null ? range.toBuilder().binning(params.getBinning()).build() : null;
+    }
+    
+    private IMDParameters rangeFromHistograms(ChannelView fretView, ChannelView cfpView) {
+        // With Restrict to ROI only the pixels that will be rendered count: slices are
+        // cropped to the ROI bounds and pixels outside its shape (NaN) are not binned
+        final int width = outputWidth(fretView);
+        final int height = outputHeight(fretView);
+        final int nSlices = params.isTestMode() ? 1 : fretView.getSize();
+        final int mode = maskMode;
+        final int step = Math.max(1, params.getAutoSampleStep());
+        int nThreads = params.isMultiThreaded() ? IMDExecutor.resolveParallelism(params.getThreads()) : 1;
+        final int workers = Math.max(1, Math.min(nThreads, Math.max(nSlices, height)));
+        final boolean rowStriped = nSlices < workers;
+        final ForkJoinPool pool = workers > 1 ? IMDExecutor.getPool(params.getThreads()) : null;
+        
+        long t0 = System.currentTimeMillis();
+        IJ.resetEscape();
+        
+        // With fewer slices than workers the slices are loaded once and shared
+        final Object[][] shared = new Object[rowStriped ? nSlices : 0][];
+        for (int s = 0; s < shared.length; s++) {
+            shared[s] = sliceInputs(null, fretView, cfpView, s + 1, pool, null);
+        }
+        
+        List<ForkJoinTask<IMDAutoRange>> futures = new ArrayList<>();
+        IMDAutoRange[] partial = new IMDAutoRange[workers];
+        for (int k = 0; k < workers; k++) {
+            final int worker = k;
+            Callable<IMDAutoRange> task = () -> {
+                IMDAutoRange histogram = new IMDAutoRange();
+                int firstRow = rowStriped ? worker : 0;
+                int rowStride = rowStriped ? workers : 1;
+                int sliceStride = rowStriped ? 1 : workers;
+                for (int s = rowStriped ? 1 : worker + 1; s <= nSlices; s += sliceStride) {
+                    if (IMDExecutor.isCancelled()) break;
+                    IMDScratch scratch = rowStriped ? null : IMDScratch.acquire();
+                    try {
+                        Object[] in = rowStriped ? shared[s - 1] : sliceInputs(null, fretView, cfpView, s, null, scratch);
+                        for (int y = firstRow; y < height; y += rowStride) {
+                            // Shift the sampled columns from row to row and slice to slice
+                            int from = y * width + (y + s) % step;
+                            histogram.add(in[0], in[1], from, (y + 1) * width, step, mode);
+                        }
+                    } finally {
+                        if (scratch != null) scratch.release();
+                    }
+                }
+                return histogram;
+            };
+            if (pool == null) {
+                try {
+                    partial[k] = task.call();
+                } catch (Exception e) {
+                    throw IMDExecutor.propagate(e);
+                }
+            } else {
+                futures.add(pool.submit(task));
+            }
+        }
+        if (pool != null) {
+            if (!IMDExecutor.awaitAll(futures)) return null;
+            for (int k = 0; k < workers; k++) {
+                partial[k] = futures.get(k).join();
+            }
+        }
+        if (IMDExecutor.isCancelled()) return null;
+        
+        IMDAutoRange histogram = partial[0];
+        for (int k = 1; k < workers; k++) histogram.merge(partial[k]);
+        
+        double rLow = histogram.ratioPercentile(params.getAutoRatioLow());
+        double rHigh = histogram.ratioPercentile(params.getAutoRatioHigh());
+        double dLow = histogram.maskPercentile(params.getAutoMaskLow());
+        double dHigh = histogram.maskPercentile(params.getAutoMaskHigh());
+        IMDParameters.Builder range = params.toBuilder();
+        if (rHigh > rLow) {
+            range.ratioRange(Math.floor(rLow * 100) / 100, Math.ceil(rHigh * 100) / 100);
+        } else {
+            IJ.log("Auto-range: no ratio spread in the data, ratio range unchanged");
+        }
+        if (dHigh > dLow) {
+            range.intensityRange(Math.floor(dLow), Math.ceil(dHigh));
+        } else {
+            IJ.log("Auto-range: no intensity spread in the data, intensity range unchanged");
+        }
+        IMDParameters result = range.build();
+        IJ.log(String.format(Locale.US,
+               "Auto-range (%d slice(s), every %d pixel(s), %d ms): ratio %.2f to %.2f (P%.1f-P%.1f), "
+               + "intensity %.0f to %.0f (P%.1f-P%.1f)",
+               nSlices, step, System.currentTimeMillis() - t0,
+               result.getRmin(), result.getRmax(), params.getAutoRatioLow(), params.getAutoRatioHigh(),
+               result.getDmin(), result.getDmax(), params.getAutoMaskLow(), params.getAutoMaskHigh()));
+        return result;
+    }
+    
+    /**
+     * Background-subtracted copies {fret, cfp} of one slice pair. The two
+     * channels are processed concurrently: forked when called from a pool
+     * worker, submitted to pool when given, otherwise one after the other.
+     */
+    private ImageProcessor[] subtractBackground(ImageProcessor fretIp, ImageProcessor cfpIp,
+                                                ForkJoinPool pool) {
+        final IMDBackground background = background();
+        ImageProcessor fret, cfp;
+        long t = metrics.start();
+        try {
+            if (ForkJoinTask.inForkJoinPool() || pool != null) {
+                ForkJoinTask<ImageProcessor> cfpTask = ForkJoinTask.adapt(() -> background.subtract(cfpIp));
+                if (ForkJoinTask.inForkJoinPool()) cfpTask.fork();
+                else pool.execute(cfpTask);
+                fret = background.subtract(fretIp);
+                cfp = cfpTask.join();
+            } else {
+                fret = background.subtract(fretIp);
+                cfp = background.subtract(cfpIp);
+            }
+        } finally {
+            metrics.stop(IMDMetrics.Stage.BACKGROUND, t, 2L * fretIp.getPixelCount());
+        }
+        return new ImageProcessor[] {fret, cfp};
+    }
+    
+    /**
+     * Background-subtracted copy of a single slice
+     */
+    private ImageProcessor subtractBackground(ImageProcessor ip) {
+        long t = metrics.start();
+        try {
+            return background().subtract(ip);
+        } finally {
+            metrics.stop(IMDMetrics.Stage.BACKGROUND, t, ip.getPixelCount());
+        }
+    }
+    
+    private IMDBackground background() {
+        return new IMDBackground(IMDParameters.bgMethodIndex(params.getBgMethod()),
+                                 params.getBgRadius(), params.getBgSmoothing());
+    }
+    
+    /**
+     * Shared BG cache with the current limits, or null when disabled or not subtracting
+     */
+    private static IMDPlaneCache configurePlaneCache(IMDParameters params) {
+        if (!params.isSubtractBackground()) return null;
+        return IMDPlaneCache.configure((long) (params.getBgCacheMB() * 1024 * 1024), params.getBgCacheDir(),
+                                       (long) (params.getBgCacheDiskMB() * 1024 * 1024));
+    }
+    
+    /**
+     * Stream output selected (ignored for virtual output and batch runs)
+     */
+    boolean streaming() {
+        return !IMDStreamWriter.NONE.equals(params.getStreamOutput()) && !params.isVirtualOutput();
+    }
+    
+    /**
+     * Open the stream writer for the output, next to the FRET source (or in
+     * the working directory when there is no ImageJ folder)
+     */
+    private IMDStreamWriter openStream(ChannelView source, String title, int width, int height) {
+        String format = params.getStreamOutput();
+        File dir = new File(params.getStreamDir().isEmpty() ? outputDirectory(source) : params.getStreamDir());
+        if (!dir.isDirectory() || !dir.canWrite()) {
+            throw new IllegalArgumentException("Cannot write streamed output to " + dir
+                                               + "; choose a writable stream folder.");
+        }
+        // An earlier result with the same title is kept: the new file gets a free name
+        String name = fileName(title), extension = IMDStreamWriter.extension(format);
+        File file = new File(dir, name + extension);
+        for (int i = 2; file.exists(); i++) {
+            file = new File(dir, name + "-" + i + extension);
+        }
+        int nThreads = params.isMultiThreaded() ? IMDExecutor.resolveParallelism(params.getThreads()) : 1;
+        ForkJoinPool pool = nThreads > 1 ? IMDExecutor.getPool(params.getThreads()) : null;
+        try {
+            IMDStreamWriter stream = IMDStreamWriter.open(format, file, width, height,
+                                                          IMDStreamWriter.frameRate(source.getImage()),
+                                                          pool, nThreads);
+            IJ.log("Streaming output (" + format + ") to: " + file);
+            return stream;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write streamed output " + file, e);
+        }
+    }
+    
+    /**
+     * Reopen a completed stream as a virtual stack
+     */
+    private ImagePlus openStreamed(IMDStreamWriter stream, String title) {
+        String path = stream.file.getPath();
+        ImagePlus imp = stream instanceof AviStreamWriter ? AVI_Reader.open(path, true)
+                                                          : FileInfoVirtualStack.openVirtual(path);
+        if (imp == null) {
+            IJ.log("Output written to " + path + " but could not be reopened");
+            return null;
+        }
+        imp.setTitle(title);
+        return imp;
+    }
+    
+    /**
+     * Folder of the FRET source, or the ImageJ folder when the source was never saved
+     */
+    private static String outputDirectory(ChannelView source) {
+        FileInfo fi = source.getImage().getOriginalFileInfo();
+        return fi != null && fi.directory != null && !fi.directory.isEmpty()
+               ? fi.directory : IJ.getDirectory("imagej");
+    }
+    
+    /**
+     * Output title made safe for use as a file name
+     */
+    private static String fileName(String title) {
+        return title.replaceAll("[\\\\/:*?\"<>|]", "_");
+    }
+    
+    /**
+     * Write the metrics of the last run as CSV and JSON next to the FRET source
+     * (or into the ImageJ folder when the source was never saved)
+     */
+    private void exportMetrics(ChannelView source, String title) {
+        String dir = outputDirectory(source);
+        if (dir == null) return;
+        String base = fileName(title) + "_metrics";
+        try {
+            File csv = new File(dir, base + ".csv");
+            metrics.exportCSV(csv);
+            metrics.exportJSON(new File(dir, base + ".json"));
+            IJ.log("Metrics saved to: " + csv.getParent() + File.separator + base + ".csv/.json");
+        } catch (IOException e) {
+            IJ.log("Warning: Could not save metrics: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Estimate the transient heap needed to process one slice: copies of both
+     * channels (only when background subtraction modifies them, or when a virtual
+     * stack has to load the slice rather than read it mapped), their float
+     * conversions (of the binned ROI bounds when set) and the RGB result
+     */
+    private long estimateBytesPerSlice(ChannelView fretView, ChannelView cfpView, boolean copied) {
+        long pixels = (long) fretView.getWidth() * fretView.getHeight();
+        long outputPixels = (long) outputWidth(fretView) * outputHeight(fretView);
+        boolean loaded = !ChannelView.mappedPair(fretView, cfpView);
+        long copies = 0;
+        if (copied || (loaded && fretView.isVirtual())) copies += pixels * fretView.getBytesPerPixel();
+        if (copied || (loaded && cfpView.isVirtual())) copies += pixels * cfpView.getBytesPerPixel();
+        long floats = (bin > 1 || region != null ? outputPixels : pixels) * 4L * 2;
+        long rgb = outputPixels * 4L;
+        return copies + floats + rgb;
+    }
+    
+    /**
+     * Memory budget in bytes: the configured value, or a quarter of the free heap when 0
+     */
+    long resolveMemoryBudget() {
+        if (params.getMemoryBudgetMB() > 0) {
+            return (long) (params.getMemoryBudgetMB() * 1024 * 1024);
+        }
+        long free = IJ.maxMemory() - IJ.currentMemory();
+        return Math.max(free / 4, 0);
+    }
+    
+    /**
+     * Largest number of slices whose working set fits in the budget (at least 1)
+     */
+    private static int chooseChunkSize(long bytesPerSlice, long budget, int nSlices) {
+        if (bytesPerSlice <= 0) return nSlices;
+        long n = budget / bytesPerSlice;
+        if (n < 1) n = 1;
+        return (int) Math.min(n, nSlices);
+    }
+    
+    private static long toMB(long bytes) {
+        return bytes / (1024 * 1024);
+    }
+    
+    /**
+     * Single-threaded processing of one chunk. Slices come from the prefetcher
+     * when one is given (virtual sources), otherwise straight from the views.
+     * Returns false if cancelled; slices finished so far are kept.
+     */
+    boolean processSingleThreaded(ChannelView fretView, ChannelView cfpView, SlicePrefetcher prefetcher,
+                                       int from, int to,
+                                       ImageStack outputStack, int offset, int nSlices,
+                                       int width, int height,
+                                       float fRmin, float fRrange, float fDmin, float fDrange) {
+        for (int s = from; s <= to; s++) {
+            if (IMDExecutor.isCancelled()) return false;
+            int slice = offset + s - from + 1;
+            if (nSlices > 1) {
+                IJ.showProgress(slice - 1, nSlices);
+                IJ.showStatus("IMD: slice " + slice + "/" + nSlices);
+            }
+            
+            ImageProcessor[] loaded = prefetcher != null ? prefetcher.next() : null;
+            if (prefetcher != null && loaded == null) return false;
+            int[] rgbPixels;
+            IMDScratch scratch = IMDScratch.acquire();
+            try {
+                if (temporal != null) temporal.next();
+                rgbPixels = processInputs(sliceInputs(loaded, fretView, cfpView, s, null, scratch),
+                                          width * height, fRmin, fRrange, fDmin, fDrange);
+            } finally {
+                scratch.release();
+            }
+            
+            long t = metrics.start();
+            try {
+                outputStack.addSlice(new ColorProcessor(width, height, rgbPixels));
+            } finally {
+                metrics.stop(IMDMetrics.Stage.ASSEMBLY, t, width * height);
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Multi-threaded processing of one chunk of a stack.
+     * Returns false if cancelled; task failures are rethrown.
+     */
+    boolean processMultiThreaded(ChannelView fretView, ChannelView cfpView, SlicePrefetcher prefetcher,
+                                      int from, int to,
+                                      ImageStack outputStack, ExecutorService executor,
+                                      int offset, int nSlices, int width, int height,
+                                      float fRmin, float fRrange, float fDmin, float fDrange) {
+        int chunkSlices = to - from + 1;
+        
+        // Results for this chunk only; slices are extracted inside the tasks
+        final int[][] results = new int[chunkSlices][];
+        List<Future<?>> futures = new ArrayList<>(chunkSlices);
+        
+        // Submit tasks. Virtual stacks read from disk and are not safe to access
+        // concurrently; their planes arrive in order from the prefetcher's reader
+        // threads, and each slice is submitted as soon as it has been read.
+        for (int s = 0; s < chunkSlices; s++) {
+            final int slice = s;
+            final ImageProcessor[] loaded = prefetcher != null ? prefetcher.next() : null;
+            if (prefetcher != null && loaded == null) break;
+            futures.add(executor.submit(() -> {
+                if (IMDExecutor.isCancelled()) return;
+                IMDScratch scratch = IMDScratch.acquire();
+                try {
+                    results[slice] = processInputs(sliceInputs(loaded, fretView, cfpView, from + slice, null, scratch),
+                                                   width * height, fRmin, fRrange, fDmin, fDrange);
+                } finally {
+                    scratch.release();
+                }
+                int done = offset + slice + 1;
+                IJ.showProgress(done, nSlices);
+                IJ.showStatus("IMD: " + done + "/" + nSlices);
+            }));
+        }
+        
+        // Wait for completion of this chunk (Escape cancels, failures are rethrown)
+        boolean completed = IMDExecutor.awaitAll(futures) && futures.size() == chunkSlices;
+        
+        // Add results to stack; when cancelled, keep the slices finished in order
+        int added = 0;
+        long t = metrics.start();
+        try {
+            for (int s = 0; s < chunkSlices; s++) {
+                if (results[s] == null) break;
+                outputStack.addSlice(new ColorProcessor(width, height, results[s]));
+                added++;
+            }
+        } finally {
+            metrics.stop(IMDMetrics.Stage.ASSEMBLY, t, (long) added * width * height);
+        }
+        return completed;
+    }
+    
+    /**
+     * Tile-parallel processing: slices are handled one after another and each
+     * slice is split into row bands on a work-stealing pool. Used for single
+     * images and stacks with fewer slices than cores.
+     * Returns false if cancelled; band failures are rethrown.
+     */
+    boolean processTiled(ChannelView fretView, ChannelView cfpView, SlicePrefetcher prefetcher,
+                      int from, int to,
+                      ImageStack outputStack, ForkJoinPool pool, int offset, int nSlices,
+                      int width, int height,
+                      float fRmin, float fRrange, float fDmin, float fDrange) {
+        int bandRows = bandRows(width, height, pool.getParallelism());
+        for (int s = from; s <= to; s++) {
+            if (IMDExecutor.isCancelled()) return false;
+            int slice = offset + s - from + 1;
+            if (nSlices > 1) {
+                IJ.showProgress(slice - 1, nSlices);
+                IJ.showStatus("IMD: slice " + slice + "/" + nSlices);
+            }
+            
+            ImageProcessor[] loaded = prefetcher != null ? prefetcher.next() : null;
+            if (prefetcher != null && loaded == null) return false;
+            int[] rgbPixels = new int[width * height];
+            IMDScratch scratch = IMDScratch.acquire();
+            try {
+                Object[] inputs = sliceInputs(loaded, fretView, cfpView, s, pool, scratch);
+                if (temporal != null) temporal.next();
+                
+                // Kernel time is recorded per band on the worker threads
+                pool.invoke(new BandTask(inputs[0], inputs[1], rgbPixels, width, 0, height, bandRows,
+                                         fRmin, fRrange, fDmin, fDrange));
+            } finally {
+                scratch.release();
+            }
+            
+            long t = metrics.start();
+            try {
+                outputStack.addSlice(new ColorProcessor(width, height, rgbPixels));
+            } finally {
+                metrics.stop(IMDMetrics.Stage.ASSEMBLY, t, width * height);
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Rows per band: about four bands per thread, but never fewer than
+     * MIN_BAND_PIXELS per band so small images are not split needlessly
+     */
+    static int bandRows(int width, int height, int parallelism) {
+        int minRows = (MIN_BAND_PIXELS + width - 1) / width;
+        int rows = height / (parallelism * 4);
+        return Math.max(1, Math.max(minRows, rows));
+    }
+    
+    /**
+     * Fork/join task rendering rows [fromRow, toRow) of one slice
+     */
+    private class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final Object fretPixels, cfpPixels;
+        private final int[] rgbPixels;
+        private final int width, fromRow, toRow, bandRows;
+        private final float fRmin, fRrange, fDmin, fDrange;
+        
+        BandTask(Object fretPixels, Object cfpPixels, int[] rgbPixels, int width,
+                 int fromRow, int toRow, int bandRows,
+                 float fRmin, float fRrange, float fDmin, float fDrange) {
+            this.fretPixels = fretPixels;
+            this.cfpPixels = cfpPixels;
+            this.rgbPixels = rgbPixels;
+            this.width = width;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.bandRows = bandRows;
+            this.fRmin = fRmin;
+            this.fRrange = fRrange;
+            this.fDmin = fDmin;
+            this.fDrange = fDrange;
+        }
+        
+        @Override
+        protected void compute() {
+            if (toRow - fromRow <= bandRows) {
+                long t = metrics.start();
+                try {
+                    processRange(fretPixels, cfpPixels, rgbPixels, fromRow * width, toRow * width,
+                                 fRmin, fRrange, fDmin, fDrange);
+                } finally {
+                    metrics.stop(IMDMetrics.Stage.KERNEL, t, (long) (toRow - fromRow) * width);
+                }
+                return;
+            }
+            int mid = (fromRow + toRow) >>> 1;
+            invokeAll(new BandTask(fretPixels, cfpPixels, rgbPixels, width, fromRow, mid, bandRows,
+                                   fRmin, fRrange, fDmin, fDrange),
+                      new BandTask(fretPixels, cfpPixels, rgbPixels, width, mid, toRow, bandRows,
+                                   fRmin, fRrange, fDmin, fDrange));
+        }
+    }
+    
+    /**
+     * Kernel inputs for slice n, background-subtracted when enabled. Uses the
+     * planes already loaded by the prefetcher if given, the mapped planes when
+     * both sources are memory-mapped TIFFs, otherwise the slices of the views.
+     * pool (may be null) runs the second channel's background subtraction;
+     * float conversions go to scratch when given (null: new arrays).
+     */
+    private Object[] sliceInputs(ImageProcessor[] loaded, ChannelView fretView,
+                                 ChannelView cfpView, int n, ForkJoinPool pool, IMDScratch scratch) {
+        if (loaded == null && !params.isSubtractBackground() && ChannelView.mappedPair(fretView, cfpView)) {
+            Object[] planes = {fretView.getMappedPlane(n), cfpView.getMappedPlane(n)};
+            if (bin == 1 && region == null) return planes;
+            long t = metrics.start();
+            try {
+                return regionInputs(planes[0], planes[1], fretView.getWidth(), fretView.getHeight(), scratch);
+            } finally {
+                metrics.stop(IMDMetrics.Stage.EXTRACT, t, (long) fretView.getWidth() * fretView.getHeight());
+            }
+        }
+        ImageProcessor fretIp, cfpIp;
+        if (params.isSubtractBackground()) {
+            ImageProcessor[] ips = subtractedSlices(loaded, fretView, cfpView, n, pool);
+            fretIp = ips[0];
+            cfpIp = ips[1];
+        } else {
+            fretIp = loaded != null ? loaded[0] : readSlice(fretView, n);
+            cfpIp = loaded != null ? loaded[1] : readSlice(cfpView, n);
+        }
+        long t = metrics.start();
+        try {
+            return bin == 1 && region == null ? kernelInputs(fretIp, cfpIp, scratch)
+                 : regionInputs(rawPixels(fretIp), rawPixels(cfpIp), fretIp.getWidth(), fretIp.getHeight(), scratch);
+        } finally {
+            metrics.stop(IMDMetrics.Stage.EXTRACT, t, (long) fretView.getWidth() * fretView.getHeight());
+        }
+    }
+    
+    /**
+     * Kernel inputs of the ROI bounds (or whole planes) and/or binned: the
+     * bin x bin block sums of both planes, read straight from the source
+     * pixels into the buffers of scratch (null: new arrays). Pixels outside
+     * the ROI shape become NaN, which renders black.
+     */
+    private Object[] regionInputs(Object fretPixels, Object cfpPixels, int width, int height, IMDScratch scratch) {
+        Rectangle r = region != null ? region.bounds : new Rectangle(width, height);
+        int size = (r.width / bin) * (r.height / bin);
+        float[] fret = IMDBinning.sum(fretPixels, width, r, bin, scratch != null ? scratch.fret(size) : new float[size]);
+        float[] cfp = IMDBinning.sum(cfpPixels, width, r, bin, scratch != null ? scratch.cfp(size) : new float[size]);
+        if (region != null) region.clearOutside(fret, cfp);
+        return new Object[] {fret, cfp};
+    }
+    
+    /**
+     * Pixel array of an 8-, 16- or 32-bit processor, a float copy for other types
+     */
+    private static Object rawPixels(ImageProcessor ip) {
+        if (ip instanceof ByteProcessor || ip instanceof ShortProcessor || ip instanceof FloatProcessor) {
+            return ip.getPixels();
+        }
+        return getFloatPixels(ip);
+    }
+    
+    /**
+     * Background-subtracted planes {fret, cfp} of slice n. Planes found in the
+     * BG cache are reused; only missing channels are read and subtracted.
+     */
+    private ImageProcessor[] subtractedSlices(ImageProcessor[] loaded, ChannelView fretView,
+                                              ChannelView cfpView, int n, ForkJoinPool pool) {
+        ImageProcessor fretIp = loaded != null ? loaded[0] : null;
+        ImageProcessor cfpIp = loaded != null ? loaded[1] : null;
+        IMDPlaneCache cache = planeCache;
+        if (cache == null) {
+            return subtractBackground(fretIp != null ? fretIp : readSlice(fretView, n),
+                                      cfpIp != null ? cfpIp : readSlice(cfpView, n), pool);
+        }
+        
+        // File-backed virtual slices are identified by their file and need not be read on a hit
+        if (fretIp == null && IMDPlaneCache.needsPixels(fretView)) fretIp = readSlice(fretView, n);
+        if (cfpIp == null && IMDPlaneCache.needsPixels(cfpView)) cfpIp = readSlice(cfpView, n);
+        int method = IMDParameters.bgMethodIndex(params.getBgMethod());
+        double radius = params.getBgRadius(), smoothing = params.getBgSmoothing();
+        IMDPlaneCache.Key fretKey = IMDPlaneCache.key(fretView, n, fretIp, method, radius, smoothing);
+        IMDPlaneCache.Key cfpKey = IMDPlaneCache.key(cfpView, n, cfpIp, method, radius, smoothing);
+        ImageProcessor fret = cache.get(fretKey);
+        ImageProcessor cfp = cache.get(cfpKey);
+        
+        if (fret == null && cfp == null) {
+            ImageProcessor[] ips = subtractBackground(fretIp != null ? fretIp : readSlice(fretView, n),
+                                                      cfpIp != null ? cfpIp : readSlice(cfpView, n), pool);
+            fret = ips[0];
+            cfp = ips[1];
+            cache.put(fretKey, fret);
+            cache.put(cfpKey, cfp);
+        } else if (fret == null) {
+            fret = subtractBackground(fretIp != null ? fretIp : readSlice(fretView, n));
+            cache.put(fretKey, fret);
+        } else if (cfp == null) {
+            cfp = subtractBackground(cfpIp != null ? cfpIp : readSlice(cfpView, n));
+            cache.put(cfpKey, cfp);
+        }
+        return new ImageProcessor[] {fret, cfp};
+    }
+    
+    /**
+     * Fetch one slice; loading a virtual stack plane from disk counts as a copy
+     */
+    private ImageProcessor readSlice(ChannelView view, int n) {
+        if (!view.isVirtual()) return view.getProcessor(n);
+        long t = metrics.start();
+        try {
+            return view.getProcessor(n);
+        } finally {
+            metrics.stop(IMDMetrics.Stage.COPY, t, (long) view.getWidth() * view.getHeight());
+        }
+    }
+    
+    /**
+     * Dispatch a slice pair to the kernel matching its bit depth.
+     * 8- and 16-bit pixels are read directly; only mixed bit depths
+     * are widened to float first.
+     */
+    int[] processProcessors(ImageProcessor fretIp, ImageProcessor cfpIp, int size,
+                            float fRmin, float fRrange, float fDmin, float fDrange) {
+        IMDScratch scratch = IMDScratch.acquire();
+        try {
+            Object[] inputs;
+            long t = metrics.start();
+            try {
+                inputs = kernelInputs(fretIp, cfpIp, scratch);
+            } finally {
+                metrics.stop(IMDMetrics.Stage.EXTRACT, t, size);
+            }
+            return processInputs(inputs, size, fRmin, fRrange, fDmin, fDrange);
+        } finally {
+            scratch.release();
+        }
+    }
+    
+    /**
+     * Render a whole slice from kernel inputs (arrays or mapped buffers)
+     */
+    int[] processInputs(Object[] inputs, int size,
+                        float fRmin, float fRrange, float fDmin, float fDrange) {
+        long t = metrics.start();
+        try {
+            int[] rgbPixels = new int[size];
+            processRange(inputs[0], inputs[1], rgbPixels, 0, size, fRmin, fRrange, fDmin, fDrange);
+            return rgbPixels;
+        } finally {
+            metrics.stop(IMDMetrics.Stage.KERNEL, t, size);
+        }
+    }
+    
+    /**
+     * Pixel arrays for the kernels: the processors' own arrays when both have
+     * the same 8-, 16- or 32-bit type (read-only, no copy), float copies otherwise
+     * (into the buffers of scratch when given)
+     */
+    Object[] kernelInputs(ImageProcessor fretIp, ImageProcessor cfpIp, IMDScratch scratch) {
+        if ((fretIp instanceof ShortProcessor && cfpIp instanceof ShortProcessor)
+                || (fretIp instanceof ByteProcessor && cfpIp instanceof ByteProcessor)
+                || (fretIp instanceof FloatProcessor && cfpIp instanceof FloatProcessor)) {
+            return new Object[] {fretIp.getPixels(), cfpIp.getPixels()};
+        }
+        if (scratch == null) return new Object[] {getFloatPixels(fretIp), getFloatPixels(cfpIp)};
+        int size = fretIp.getPixelCount();
+        return new Object[] {getFloatPixels(fretIp, scratch.fret(size)), getFloatPixels(cfpIp, scratch.cfp(size))};
+    }
+    
+    /**
+     * Render pixels [from, to) with the kernel matching the array (or mapped buffer) type
+     */
+    void processRange(Object fretPixels, Object cfpPixels, int[] rgbPixels, int from, int to,
+                      float fRmin, float fRrange, float fDmin, float fDrange) {
+        if (temporal != null) {
+            processSmoothedPixels(fretPixels, cfpPixels, rgbPixels, from, to, fRmin, fRrange, fDmin, fDrange);
+        } else if (fretPixels instanceof Buffer) {
+            processMappedPixels((Buffer) fretPixels, (Buffer) cfpPixels, rgbPixels, from, to,
+                                fRmin, fRrange, fDmin, fDrange);
+        } else if (fretPixels instanceof short[]) {
+            processShortPixels((short[]) fretPixels, (short[]) cfpPixels, rgbPixels, from, to,
+                               fRmin, fRrange, fDmin, fDrange);
+        } else if (fretPixels instanceof byte[]) {
+            processBytePixels((byte[]) fretPixels, (byte[]) cfpPixels, rgbPixels, from, to,
+                              fRmin, fRrange, fDmin, fDrange);
+        } else {
+            processFloatPixels((float[]) fretPixels, (float[]) cfpPixels, rgbPixels, from, to,
+                               fRmin, fRrange, fDmin, fDrange);
+        }
+    }
+    
+    /**
+     * Kernel with the temporal window over pixels [from, to) of any input type:
+     * the ratio and mask value of each pixel (same arithmetic as the other
+     * kernels) are added to the window, and the smoothed values are shaded.
+     * With rgbPixels null the values are only added.
+     */
+    private void processSmoothedPixels(Object fretPixels, Object cfpPixels, int[] rgbPixels, int from, int to,
+                                       float fRmin, float fRrange, float fDmin, float fDrange) {
+        final byte[] reds = this.lutReds;
+        final byte[] greens = this.lutGreens;
+        final byte[] blues = this.lutBlues;
+        final int mode = this.maskMode;
+        final int[] table = this.colorTable;
+        int n = to - from;
+        
+        // The band is widened into the two buffers, then replaced by ratio and mask value
+        float[][] buffers = IMDScratch.bandBuffers(n);
+        float[] ratios = buffers[0], maskValues = buffers[1];
+        widen(fretPixels, from, to, ratios);
+        widen(cfpPixels, from, to, maskValues);
+        for (int k = 0; k < n; k++) {
+            float fretVal = ratios[k];
+            float cfpVal = maskValues[k];
+            float ratio = cfpVal != 0 ? fretVal / cfpVal : 0;
+            ratios[k] = Float.isNaN(ratio) ? 0 : ratio;
+            maskValues[k] = mode == MASK_FRET ? fretVal
+                          : mode == MASK_AVERAGE ? (cfpVal + fretVal) / 2.0f
+                          : cfpVal;
+        }
+        temporal.smooth(from, ratios, maskValues, n);
+        if (rgbPixels == null) return;
+        
+        final boolean skipDark = fDrange > 0;
+        for (int k = 0; k < n; k++) {
+            if (skipDark && !(maskValues[k] > fDmin)) {
+                rgbPixels[from + k] = 0;
+                continue;
+            }
+            // A mean of opposite infinite ratios is NaN, mapped like any NaN ratio
+            float ratio = Float.isNaN(ratios[k]) ? 0 : ratios[k];
+            rgbPixels[from + k] = table != null
+                                ? shadeTable(ratio, maskValues[k], fRmin, fRrange, fDmin, fDrange, table)
+                                : shade(ratio, maskValues[k], fRmin, fRrange, fDmin, fDrange, reds, greens, blues);
+        }
+    }
+    
+    /**
+     * Pixels [from, to) of an array or mapped buffer as floats in dst[0..to-from)
+     */
+    private static void widen(Object pixels, int from, int to, float[] dst) {
+        if (pixels instanceof float[]) {
+            System.arraycopy((float[]) pixels, from, dst, 0, to - from);
+        } else if (pixels instanceof short[]) {
+            short[] src = (short[]) pixels;
+            for (int i = from; i < to; i++) dst[i - from] = src[i] & 0xffff;
+        } else if (pixels instanceof byte[]) {
+            byte[] src = (byte[]) pixels;
+            for (int i = from; i < to; i++) dst[i - from] = src[i] & 0xff;
+        } else if (pixels instanceof FloatBuffer) {
+            FloatBuffer src = (FloatBuffer) pixels;
+            for (int i = from; i < to; i++) dst[i - from] = src.get(i);
+        } else if (pixels instanceof ShortBuffer) {
+            ShortBuffer src = (ShortBuffer) pixels;
+            for (int i = from; i < to; i++) dst[i - from] = src.get(i) & 0xffff;
+        } else {
+            ByteBuffer src = (ByteBuffer) pixels;
+            for (int i = from; i < to; i++) dst[i - from] = src.get(i) & 0xff;
+        }
+    }
+    
+    /**
+     * Core pixel processing - with bug fixes
+     * - Uses float division for accurate ratio
+     * - Supports multiple mask sources
+     */
+    int[] processPixelArrays(float[] fretPixels, float[] cfpPixels, int size,
+                             float fRmin, float fRrange, float fDmin, float fDrange) {
+        return processPixelArrays(fretPixels, cfpPixels, new int[size], size, fRmin, fRrange, fDmin, fDrange);
+    }
+    
+    /**
+     * Same as above, writing into the caller's rgbPixels (at least size long)
+     */
+    int[] processPixelArrays(float[] fretPixels, float[] cfpPixels, int[] rgbPixels, int size,
+                             float fRmin, float fRrange, float fDmin, float fDrange) {
+        processFloatPixels(fretPixels, cfpPixels, rgbPixels, 0, size, fRmin, fRrange, fDmin, fDrange);
+        return rgbPixels;
+    }
+    
+    /**
+     * 32-bit kernel over pixels [from, to)
+     */
+    private void processFloatPixels(float[] fretPixels, float[] cfpPixels, int[] rgbPixels,
+                                    int from, int to,
+                                    float fRmin, float fRrange, float fDmin, float fDrange) {
+        // Local references for speed
+        final byte[] reds = this.lutReds;
+        final byte[] greens = this.lutGreens;
+        final byte[] blues = this.lutBlues;
+        final int mode = this.maskMode;
+        final int[] table = this.colorTable;
+        // SIMD kernel on Java 17+ (bit-identical); the scalar loop is the fallback
+        if (table == null && VectorKernel.isAvailable()
+                && VectorKernel.shade(fretPixels, cfpPixels, rgbPixels, from, to, mode,
+                                      fRmin, fRrange, fDmin, fDrange, reds, greens, blues)) {
+            return;
+        }
+        
+        final boolean skipDark = fDrange > 0;
+        for (int i = from; i < to; i++) {
+            float fretVal = fretPixels[i];
+            float cfpVal = cfpPixels[i];
+            
+            // Calculate mask from selected source (bug fix: use processed image)
+            float maskValue = mode == MASK_FRET ? fretVal
+                            : mode == MASK_AVERAGE ? (cfpVal + fretVal) / 2.0f
+                            : cfpVal;
+            
+            // At or below dmin the pixel is black whatever the ratio
+            if (skipDark && !(maskValue > fDmin)) {
+                rgbPixels[i] = 0;
+                continue;
+            }
+            
+            // Calculate ratio using FLOAT division (bug fix)
+            float ratio;
+            if (cfpVal != 0) {
+                ratio = fretVal / cfpVal;
+            } else {
+                ratio = 0;
+            }
+            
+            // Handle NaN
+            if (Float.isNaN(ratio)) {
+                ratio = 0;
+            }
+            
+            rgbPixels[i] = table != null
+                         ? shadeTable(ratio, maskValue, fRmin, fRrange, fDmin, fDrange, table)
+                         : shade(ratio, maskValue, fRmin, fRrange, fDmin, fDrange, reds, greens, blues);
+        }
+    }
+    
+    /**
+     * 16-bit kernel over pixels [from, to). Integer inputs cannot produce a NaN ratio.
+     */
+    private void processShortPixels(short[] fretPixels, short[] cfpPixels, int[] rgbPixels,
+                                    int from, int to,
+                                    float fRmin, float fRrange, float fDmin, float fDrange) {
+        final byte[] reds = this.lutReds;
+        final byte[] greens = this.lutGreens;
+        final byte[] blues = this.lutBlues;
+        final int mode = this.maskMode;
+        final int[] table = this.colorTable;
+        // SIMD kernel on Java 17+ (bit-identical); the scalar loop is the fallback
+        if (table == null && VectorKernel.isAvailable()
+                && VectorKernel.shade(fretPixels, cfpPixels, rgbPixels, from, to, mode,
+                                      fRmin, fRrange, fDmin, fDrange, reds, greens, blues)) {
+            return;
+        }
+        
+        final boolean skipDark = fDrange > 0;
+        for (int i = from; i < to; i++) {
+            float fretVal = fretPixels[i] & 0xffff;
+            float cfpVal = cfpPixels[i] & 0xffff;
+            float maskValue = mode == MASK_FRET ? fretVal
+                            : mode == MASK_AVERAGE ? (cfpVal + fretVal) / 2.0f
+                            : cfpVal;
+            if (skipDark && !(maskValue > fDmin)) {
+                rgbPixels[i] = 0;
+                continue;
+            }
+            float ratio = cfpVal != 0 ? fretVal / cfpVal : 0;
+            rgbPixels[i] = table != null
+                         ? shadeTable(ratio, maskValue, fRmin, fRrange, fDmin, fDrange, table)
+                         : shade(ratio, maskValue, fRmin, fRrange, fDmin, fDrange, reds, greens, blues);
+        }
+    }
+    
+    /**
+     * 8-bit kernel over pixels [from, to). Integer inputs cannot produce a NaN ratio.
+     */
+    private void processBytePixels(byte[] fretPixels, byte[] cfpPixels, int[] rgbPixels,
+                                   int from, int to,
+                                   float fRmin, float fRrange, float fDmin, float fDrange) {
+        final byte[] reds = this.lutReds;
+        final byte[] greens = this.lutGreens;
+        final byte[] blues = this.lutBlues;
+        final int mode = this.maskMode;
+        final int[] table = this.colorTable;
+        // SIMD kernel on Java 17+ (bit-identical); the scalar loop is the fallback
+        if (table == null && VectorKernel.isAvailable()
+                && VectorKernel.shade(fretPixels, cfpPixels, rgbPixels, from, to, mode,
+                                      fRmin, fRrange, fDmin, fDrange, reds, greens, blues)) {
+            return;
+        }
+        
+        final boolean skipDark = fDrange > 0;
+        for (int i = from; i < to; i++) {
+            float fretVal = fretPixels[i] & 0xff;
+            float cfpVal = cfpPixels[i] & 0xff;
+            float maskValue = mode == MASK_FRET ? fretVal
+                            : mode == MASK_AVERAGE ? (cfpVal + fretVal) / 2.0f
+                            : cfpVal;
+            if (skipDark && !(maskValue > fDmin)) {
+                rgbPixels[i] = 0;
+                continue;
+            }
+            float ratio = cfpVal != 0 ? fretVal / cfpVal : 0;
+            rgbPixels[i] = table != null
+                         ? shadeTable(ratio, maskValue, fRmin, fRrange, fDmin, fDrange, table)
+                         : shade(ratio, maskValue, fRmin, fRrange, fDmin, fDrange, reds, greens, blues);
+        }
+    }
+    
+    /**
+     * Kernel over pixels [from, to) of memory-mapped planes (both ByteBuffer,
+     * ShortBuffer or FloatBuffer). Values are read with absolute gets in the
+     * file's byte order and produce the same output as the array kernels.
+     */
+    private void processMappedPixels(Buffer fretPixels, Buffer cfpPixels, int[] rgbPixels,
+                                     int from, int to,
+                                     float fRmin, float fRrange, float fDmin, float fDrange) {
+        final byte[] reds = this.lutReds;
+        final byte[] greens = this.lutGreens;
+        final byte[] blues = this.lutBlues;
+        final int mode = this.maskMode;
+        final int[] table = this.colorTable;
+        final ShortBuffer fretShorts = fretPixels instanceof ShortBuffer ? (ShortBuffer) fretPixels : null;
+        final ShortBuffer cfpShorts = cfpPixels instanceof ShortBuffer ? (ShortBuffer) cfpPixels : null;
+        final FloatBuffer fretFloats = fretPixels instanceof FloatBuffer ? (FloatBuffer) fretPixels : null;
+        final FloatBuffer cfpFloats = cfpPixels instanceof FloatBuffer ? (FloatBuffer) cfpPixels : null;
+        final ByteBuffer fretBytes = fretPixels instanceof ByteBuffer ? (ByteBuffer) fretPixels : null;
+        final ByteBuffer cfpBytes = cfpPixels instanceof ByteBuffer ? (ByteBuffer) cfpPixels : null;
+        final boolean skipDark = fDrange > 0;
+        
+        for (int i = from; i < to; i++) {
+            float fretVal, cfpVal;
+            if (fretShorts != null) {
+                fretVal = fretShorts.get(i) & 0xffff;
+                cfpVal = cfpShorts.get(i) & 0xffff;
+            } else if (fretFloats != null) {
+                fretVal = fretFloats.get(i);
+                cfpVal = cfpFloats.get(i);
+            } else {
+                fretVal = fretBytes.get(i) & 0xff;
+                cfpVal = cfpBytes.get(i) & 0xff;
+            }
+            float maskValue = mode == MASK_FRET ? fretVal
+                            : mode == MASK_AVERAGE ? (cfpVal + fretVal) / 2.0f
+                            : cfpVal;
+            if (skipDark && !(maskValue > fDmin)) {
+                rgbPixels[i] = 0;
+                continue;
+            }
+            float ratio = cfpVal != 0 ? fretVal / cfpVal : 0;
+            if (Float.isNaN(ratio)) ratio = 0;
+            rgbPixels[i] = table != null
+                         ? shadeTable(ratio, maskValue, fRmin, fRrange, fDmin, fDrange, table)
+                         : shade(ratio, maskValue, fRmin, fRrange, fDmin, fDrange, reds, greens, blues);
+        }
+    }
+    
+    /**
+     * Map a ratio through the LUT and scale by the normalized mask value
+     */
+    static int shade(float ratio, float maskValue,
+                     float fRmin, float fRrange, float fDmin, float fDrange,
+                     byte[] reds, byte[] greens, byte[] blues) {
+        // Normalize ratio to 0-1
+        float normRatio = (ratio - fRmin) / fRrange;
+        if (normRatio < 0) normRatio = 0;
+        else if (normRatio > 1) normRatio = 1;
+        
+        // LUT index (0-255)
+        int idx = (int) (normRatio * 255);
+        if (idx > 255) idx = 255;
+        if (idx < 0) idx = 0;
+        
+        float mask = (maskValue - fDmin) / fDrange;
+        if (mask < 0) mask = 0;
+        else if (mask > 1) mask = 1;
+        
+        // Apply LUT and mask
+        int r = (int) ((reds[idx] & 0xff) * mask);
+        int g = (int) ((greens[idx] & 0xff) * mask);
+        int b = (int) ((blues[idx] & 0xff) * mask);
+        
+        // Clamp values (shouldn't be necessary but for safety)
+        if (r > 255) r = 255;
+        if (g > 255) g = 255;
+        if (b > 255) b = 255;
+        
+        return (r << 16) | (g << 8) | b;
+    }
+    
+    /**
+     * Packed RGB for every LUT index (ratio bin) and every mask value j/255
+     * (mask bin), built once per run. Entry [idx * 256 + j] equals the exact
+     * path for a mask of exactly j/255.
+     */
+    static int[] buildColorTable(byte[] reds, byte[] greens, byte[] blues) {
+        int[] table = new int[256 * 256];
+        for (int idx = 0; idx < 256; idx++) {
+            for (int j = 0; j < 256; j++) {
+                float mask = j / 255f;
+                int r = (int) ((reds[idx] & 0xff) * mask);
+                int g = (int) ((greens[idx] & 0xff) * mask);
+                int b = (int) ((blues[idx] & 0xff) * mask);
+                table[(idx << 8) | j] = (r << 16) | (g << 8) | b;
+            }
+        }
+        return table;
+    }
+    
+    /**
+     * Table variant of shade(): the ratio bin is computed exactly as in shade(),
+     * the mask is rounded to the nearest of 256 bins (within one grey level)
+     */
+    static int shadeTable(float ratio, float maskValue,
+                          float fRmin, float fRrange, float fDmin, float fDrange, int[] table) {
+        float normRatio = (ratio - fRmin) / fRrange;
+        if (normRatio < 0) normRatio = 0;
+        else if (normRatio > 1) normRatio = 1;
+        int idx = (int) (normRatio * 255);
+        if (idx > 255) idx = 255;
+        if (idx < 0) idx = 0;
+        
+        float mask = (maskValue - fDmin) / fDrange;
+        int j;
+        if (mask > 0) {
+            j = mask < 1 ? (int) (mask * 255 + 0.5f) : 255;
+        } else {
+            j = 0;
+        }
+        return table[(idx << 8) | j];
+    }
+    
+    /**
+     * Resolve the mask source label once per slice instead of per pixel
+     */
+    static int maskMode(String source) {
+        if (source.equals("FRET")) return MASK_FRET;
+        if (source.equals("Average (CFP+FRET)/2")) return MASK_AVERAGE;
+        return MASK_CFP;    // Default: CFP (Donor)
+    }
+    
+    /**
+     * Get pixels as float array (handles 8, 16, 32-bit)
+     * This ensures accurate ratio calculation regardless of input bit depth
+     */
+    static float[] getFloatPixels(ImageProcessor ip) {
+        return getFloatPixels(ip, new float[ip.getWidth() * ip.getHeight()]);
+    }
+    
+    /**
+     * Same as above, converting into result (at least as long as the image)
+     */
+    static float[] getFloatPixels(ImageProcessor ip, float[] result) {
+        int size = ip.getWidth() * ip.getHeight();
+        if (ip instanceof FloatProcessor) {
+            float[] src = (float[]) ip.getPixels();
+            System.arraycopy(src, 0, result, 0, size);
+        } else if (ip instanceof ShortProcessor) {
+            short[] pixels = (short[]) ip.getPixels();
+            for (int i = 0; i < size; i++) {
+                result[i] = pixels[i] & 0xffff;
+            }
+        } else if (ip instanceof ByteProcessor) {
+            byte[] pixels = (byte[]) ip.getPixels();
+            for (int i = 0; i < size; i++) {
+                result[i] = pixels[i] & 0xff;
+            }
+        } else {
+            // Fallback for other types
+            for (int i = 0; i < size; i++) {
+                result[i] = ip.getf(i);
+            }
+        }
+        return result;
+    }
+}
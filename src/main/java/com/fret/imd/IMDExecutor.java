@@ -0,0 +1,121 @@
+package com.fret.imd;
+
+import ij.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plugin-wide worker pool.
+ *
+ * One work-stealing pool per parallelism level is shared by every IMD run
+ * instead of creating a fresh pool per invocation. A published pool is never
+ * shut down, because runs, virtual stacks and stream writers keep their own
+ * reference to it while another run may ask for a different thread count.
+ * Workers are daemon threads that retire when idle, so an unused pool costs
+ * no threads and never keeps ImageJ from exiting.
+ */
+final class IMDExecutor {
+
+    private static final Map<Integer, ForkJoinPool> POOLS = new HashMap<Integer, ForkJoinPool>();
+
+    private IMDExecutor() {
+    }
+
+    /**
+     * Number of worker threads for a requested count (0 or less = all cores)
+     */
+    static int resolveParallelism(int requested) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return requested > 0 ? Math.min(requested, 256) : cores;
+    }
+
+    /**
+     * Shared pool with the given parallelism (0 or less = all cores)
+     */
+    static synchronized ForkJoinPool getPool(int requested) {
+        int parallelism = resolveParallelism(requested);
+        ForkJoinPool pool = POOLS.get(parallelism);
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism, new WorkerFactory(parallelism), null, false);
+            POOLS.put(parallelism, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * True when the user pressed Escape (or aborted a macro) during the run.
+     * The Escape flag is ImageJ-wide, so it cancels every run in progress.
+     */
+    static boolean isCancelled() {
+        return IJ.escapePressed() || Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * Wait for all futures in order. On cancellation the outstanding tasks are
+     * cancelled and false is returned; a task failure is rethrown after the
+     * remaining tasks have been cancelled.
+     */
+    static boolean awaitAll(List<? extends Future<?>> futures) {
+        for (Future<?> f : futures) {
+            while (true) {
+                if (isCancelled()) {
+                    cancelAll(futures);
+                    return false;
+                }
+                try {
+                    f.get(100, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    // poll for Escape again
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancelAll(futures);
+                    return false;
+                } catch (CancellationException e) {
+                    cancelAll(futures);
+                    return false;
+                } catch (ExecutionException e) {
+                    cancelAll(futures);
+                    throw propagate(e.getCause());
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Unwrap a task failure so that it can be rethrown on the calling thread
+     */
+    static RuntimeException propagate(Throwable cause) {
+        if (cause instanceof Error) throw (Error) cause;
+        if (cause instanceof RuntimeException) return (RuntimeException) cause;
+        return new RuntimeException(cause);
+    }
+
+    private static void cancelAll(List<? extends Future<?>> futures) {
+        for (Future<?> f : futures) {
+            f.cancel(true);
+        }
+    }
+
+    /**
+     * Named daemon workers
+     */
+    private static class WorkerFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+        private final int parallelism;
+
+        WorkerFactory(int parallelism) {
+            this.parallelism = parallelism;
+        }
+
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool p) {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            t.setName("IMD-worker-" + parallelism + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.fret.imd;
+
+import ij.*;
+import ij.plugin.LutLoader;
+import ij.process.*;
+import java.awt.GraphicsEnvironment;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.util.*;
+
+/**
+ * Plugin-wide registry of LUT colour tables.
+ *
+ * Each LUT is resolved once (ImageJ's built-in tables, then .lut files in
+ * ImageJ/luts/) and its red, green and blue tables are kept in memory, so
+ * repeated runs and macro loops no longer render a temporary image through
+ * the LUT menu command. The list of names and the tables read from files
+ * are refreshed when the modification time of the luts folder (or of the
+ * file) changes.
+ */
+final class IMDLuts {
+
+    // Listed even if absent from the luts folder (ImageJ and Fiji defaults)
+    private static final String[] BUILT_IN = {
+        "Grays", "Fire", "Ice", "Spectrum", "Red", "Green", "Blue",
+        "Cyan", "Magenta", "Yellow", "Red/Green", "physics", "Jet",
+        "Thermal", "Rainbow RGB", "Red Hot", "Green Fire Blue",
+        "16 colors", "5 ramps", "6 shades"
+    };
+
+    private static final Map<String, Entry> tables = new HashMap<>();
+    private static String[] names;
+    private static File scannedFolder;
+    private static long scannedModified;
+
+    private IMDLuts() {
+    }
+
+    /**
+     * Names for the LUT choice: built-in LUTs plus the .lut files of the luts folder
+     */
+    static synchronized String[] names() {
+        refresh();
+        if (names == null) {
+            TreeSet<String> luts = new TreeSet<>();
+            Collections.addAll(luts, BUILT_IN);
+            File[] files = scannedFolder != null ? scannedFolder.listFiles((d, n) -> n.endsWith(".lut")) : null;
+            if (files != null) {
+                for (File f : files) {
+                    String name = f.getName();
+                    luts.add(name.substring(0, name.length() - 4));
+                }
+            }
+            names = luts.toArray(new String[0]);
+        }
+        return names.clone();
+    }
+
+    /**
+     * Red, green and blue tables (256 entries each) of a LUT, or null when it
+     * cannot be found. The arrays are shared: callers must not modify them.
+     */
+    static synchronized byte[][] get(String name) {
+        refresh();
+        Entry entry = tables.get(name);
+        if (entry != null && entry.file != null && entry.file.lastModified() != entry.modified) {
+            entry = null;
+        }
+        if (entry == null) {
+            entry = load(name);
+            if (entry == null) return null;
+            tables.put(name, entry);
+        }
+        return entry.rgb;
+    }
+
+    /**
+     * Drop the cached names and tables when the luts folder has changed
+     */
+    private static void refresh() {
+        File folder = folder();
+        long modified = folder != null ? folder.lastModified() : 0;
+        if (Objects.equals(folder, scannedFolder) && modified == scannedModified) return;
+        scannedFolder = folder;
+        scannedModified = modified;
+        names = null;
+        tables.clear();
+    }
+
+    private static File folder() {
+        String ijDir = IJ.getDirectory("imagej");
+        if (ijDir == null) return null;
+        File folder = new File(ijDir, "luts");
+        return folder.isDirectory() ? folder : null;
+    }
+
+    private static Entry load(String name) {
+        // Built-in tables (Fire, Grays, Ice, ...) are generated by LutLoader
+        if (isGenerated(name)) {
+            IndexColorModel cm = LutLoader.getLut(name);
+            if (cm != null) return new Entry(tables(cm), null);
+        }
+        File file = file(name);
+        if (file != null) {
+            long modified = file.lastModified();
+            LUT lut = LutLoader.openLut("noerror:" + file.getPath());
+            if (lut != null) return new Entry(tables(lut), file, modified);
+            IJ.log("Error loading LUT: " + file);
+        }
+        // LUTs installed as menu commands by other plugins (needs the GUI menus)
+        return GraphicsEnvironment.isHeadless() ? null : render(name);
+    }
+
+    /**
+     * True for LUTs that LutLoader generates without a file
+     */
+    private static boolean isGenerated(String name) {
+        switch (name.toLowerCase(Locale.US)) {
+            case "fire": case "grays": case "ice": case "spectrum": case "3-3-2 rgb":
+            case "red": case "green": case "blue": case "cyan": case "magenta":
+            case "yellow": case "red/green":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * .lut file of a LUT in the luts folder (spaces may be underscores), or null
+     */
+    private static File file(String name) {
+        if (scannedFolder == null) return null;
+        for (String candidate : new String[] {name, name.replace(' ', '_')}) {
+            File f = new File(scannedFolder, candidate + ".lut");
+            if (f.isFile()) return f;
+        }
+        return null;
+    }
+
+    /**
+     * Apply the LUT command to a 256x1 ramp and read back its tables
+     */
+    private static Entry render(String name) {
+        try {
+            ImagePlus tempImp = new ImagePlus("temp", new ByteProcessor(256, 1));
+            IJ.run(tempImp, name, "");
+            LUT lut = tempImp.getProcessor().getLut();
+            tempImp.close();
+            return lut != null ? new Entry(tables(lut), null) : null;
+        } catch (Exception e) {
+            IJ.log("Error loading LUT: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static byte[][] tables(IndexColorModel cm) {
+        byte[][] rgb = new byte[3][256];
+        cm.getReds(rgb[0]);
+        cm.getGreens(rgb[1]);
+        cm.getBlues(rgb[2]);
+        return rgb;
+    }
+
+    private static final class Entry {
+        final byte[][] rgb;
+        final File file;
+        final long modified;
+
+        Entry(byte[][] rgb, File file) {
+            this(rgb, file, 0);
+        }
+
+        Entry(byte[][] rgb, File file, long modified) {
+            this.rgb = rgb;
+            this.file = file;
+            this.modified = modified;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.fret.imd;
+
+import ij.*;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-stage timing and throughput of one IMD run.
+ *
+ * Stages are timed with start()/stop() from any thread. For every stage the
+ * summed time across threads, the bytes allocated by the timed code (when
+ * the JVM supports per-thread allocation counters) and the pixels handled
+ * are recorded. Results can be logged, exported as CSV/JSON and are emitted
+ * as JFR events when a flight recording is running.
+ *
+ * start() returns a primitive timestamp; allocation baselines are kept in a
+ * per-thread stack, so timing a stage allocates nothing. Stages may nest on
+ * one thread (a pool worker runs stolen tasks while it waits inside a timed
+ * stage); only outermost stages count as busy time for utilisation.
+ */
+final class IMDMetrics {
+
+    enum Stage {
+        COPY("copy"),
+        BACKGROUND("background"),
+        EXTRACT("extract"),
+        KERNEL("kernel"),
+        ASSEMBLY("assembly");
+
+        final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS = allocationBean();
+    private static final boolean JFR = jfrAvailable();
+
+    // Stages open on each thread, innermost last
+    private static final ThreadLocal<OpenStages> OPEN = ThreadLocal.withInitial(OpenStages::new);
+
+    private final int nStages = Stage.values().length;
+    private final LongAdder[] nanos = adders(nStages);
+    private final LongAdder[] bytes = adders(nStages);
+    private final LongAdder[] pixels = adders(nStages);
+    private final LongAdder[] calls = adders(nStages);
+    private final LongAdder busy = new LongAdder();
+
+    private long wallStart;
+    private long wallNanos;
+    private int threads = 1;
+    private long totalPixels;
+    private volatile Thread owner;      // Thread doing the work when no pool is used
+
+    /**
+     * Start the run clock. With more than one thread the work runs on pool
+     * workers; otherwise on the calling thread. Only their busy time counts
+     * towards utilisation (not reader threads or the waiting caller).
+     */
+    void begin(int threads) {
+        this.threads = threads;
+        owner = threads > 1 ? null : Thread.currentThread();
+        wallStart = System.nanoTime();
+    }
+
+    /**
+     * Stop the run clock; totalPixels is the number of input pixels per channel
+     */
+    void finish(long totalPixels) {
+        this.totalPixels = totalPixels;
+        wallNanos = System.nanoTime() - wallStart;
+    }
+
+    /**
+     * Start timing a stage on the current thread; pass the result to stop(),
+     * called in a finally block so that the per-thread stack of open stages
+     * stays balanced when the stage throws (pool workers outlive the run)
+     */
+    long start() {
+        OPEN.get().push(allocatedBytes(), JFR ? IMDStageEvent.start() : null);
+        return System.nanoTime();
+    }
+
+    /**
+     * Stop timing the stage most recently started on the current thread
+     */
+    void stop(Stage stage, long start, long stagePixels) {
+        long dt = System.nanoTime() - start;
+        OpenStages open = OPEN.get();
+        int d = --open.depth;
+        long db = open.bytes[d] >= 0 ? allocatedBytes() - open.bytes[d] : 0;
+        Object event = open.events[d];
+        open.events[d] = null;
+        int i = stage.ordinal();
+        nanos[i].add(dt);
+        bytes[i].add(db);
+        pixels[i].add(stagePixels);
+        calls[i].increment();
+        if (d == 0 && isWorker(Thread.currentThread())) busy.add(dt);
+        if (event != null) IMDStageEvent.commit(event, stage.label, stagePixels, db);
+    }
+
+    private boolean isWorker(Thread t) {
+        Thread o = owner;
+        return o != null ? t == o : t instanceof ForkJoinWorkerThread;
+    }
+
+    /**
+     * Busy time of the worker threads divided by wall time x threads
+     */
+    double utilisation() {
+        return wallNanos > 0 ? (double) busy.sum() / ((double) wallNanos * threads) : 0;
+    }
+
+    void log() {
+        IJ.log("--- Stage timing ---");
+        for (Stage stage : Stage.values()) {
+            int i = stage.ordinal();
+            if (calls[i].sum() == 0) continue;
+            IJ.log(String.format(Locale.US, "%-10s %8.1f ms  %8.1f MB  %8.1f Mpx/s",
+                                 stage.label, nanos[i].sum() / 1e6, bytes[i].sum() / 1048576.0,
+                                 rate(pixels[i].sum(), nanos[i].sum()) / 1e6));
+        }
+        IJ.log(String.format(Locale.US, "Wall %.1f ms, %d thread(s), utilisation %.0f%%, %.1f Mpx/s",
+                             wallNanos / 1e6, threads, utilisation() * 100,
+                             rate(totalPixels, wallNanos) / 1e6));
+    }
+
+    void exportCSV(File file) throws IOException {
+        try (PrintWriter w = new PrintWriter(new FileWriter(file))) {
+            w.println("stage,calls,time_ms,allocated_bytes,pixels,pixels_per_s,threads");
+            for (Stage stage : Stage.values()) {
+                int i = stage.ordinal();
+                w.println(String.format(Locale.US, "%s,%d,%.3f,%d,%d,%.0f,",
+                                        stage.label, calls[i].sum(), nanos[i].sum() / 1e6,
+                                        bytes[i].sum(), pixels[i].sum(),
+                                        rate(pixels[i].sum(), nanos[i].sum())));
+            }
+            w.println(String.format(Locale.US, "total,%d,%.3f,%d,%d,%.0f,%d",
+                                    totalCalls(), wallNanos / 1e6, totalBytes(), totalPixels,
+                                    rate(totalPixels, wallNanos), threads));
+        }
+    }
+
+    void exportJSON(File file) throws IOException {
+        try (PrintWriter w = new PrintWriter(new FileWriter(file))) {
+            w.println("{");
+            w.println(String.format(Locale.US, "  \"wall_ms\": %.3f,", wallNanos / 1e6));
+            w.println("  \"threads\": " + threads + ",");
+            w.println(String.format(Locale.US, "  \"utilisation\": %.4f,", utilisation()));
+            w.println("  \"pixels\": " + totalPixels + ",");
+            w.println(String.format(Locale.US, "  \"pixels_per_s\": %.0f,", rate(totalPixels, wallNanos)));
+            w.println("  \"allocated_bytes\": " + totalBytes() + ",");
+            w.println("  \"stages\": [");
+            Stage[] stages = Stage.values();
+            for (Stage stage : stages) {
+                int i = stage.ordinal();
+                w.print(String.format(Locale.US,
+                        "    {\"stage\": \"%s\", \"calls\": %d, \"time_ms\": %.3f, "
+                        + "\"allocated_bytes\": %d, \"pixels\": %d, \"pixels_per_s\": %.0f}",
+                        stage.label, calls[i].sum(), nanos[i].sum() / 1e6, bytes[i].sum(),
+                        pixels[i].sum(), rate(pixels[i].sum(), nanos[i].sum())));
+                w.println(i < stages.length - 1 ? "," : "");
+            }
+            w.println("  ]");
+            w.println("}");
+        }
+    }
+
+    private long totalCalls() {
+        long total = 0;
+        for (LongAdder a : calls) total += a.sum();
+        return total;
+    }
+
+    private long totalBytes() {
+        long total = 0;
+        for (LongAdder a : bytes) total += a.sum();
+        return total;
+    }
+
+    private static double rate(long count, long nanos) {
+        return nanos > 0 ? count * 1e9 / nanos : 0;
+    }
+
+    private static long allocatedBytes() {
+        if (THREADS == null) return -1;
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] a = new LongAdder[n];
+        for (int i = 0; i < n; i++) a[i] = new LongAdder();
+        return a;
+    }
+
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        try {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+                if (sun.isThreadAllocatedMemorySupported()) {
+                    sun.setThreadAllocatedMemoryEnabled(true);
+                    return sun;
+                }
+            }
+        } catch (Throwable e) {
+            // Not a HotSpot-compatible JVM
+        }
+        return null;
+    }
+
+    private static boolean jfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (Throwable e) {
+            return false;    // Java 8 builds without Flight Recorder
+        }
+    }
+
+    /**
+     * Allocation baselines and JFR events of the stages open on one thread
+     */
+    private static final class OpenStages {
+        long[] bytes = new long[8];
+        Object[] events = new Object[8];
+        int depth;
+
+        void push(long allocated, Object event) {
+            if (depth == bytes.length) {
+                bytes = Arrays.copyOf(bytes, depth * 2);
+                events = Arrays.copyOf(events, depth * 2);
+            }
+            bytes[depth] = allocated;
+            events[depth] = event;
+            depth++;
+        }
+    }
+}
@@ -0,0 +1,622 @@
+package com.fret.imd;
+
+import ij.*;
+import java.io.*;
+
+/**
+ * Immutable IMD settings.
+ *
+ * Instances are made with a Builder (builder() for the defaults, toBuilder()
+ * to change a copy) and can be shared freely between threads and engines.
+ * load() and save() read and write IMD_parameters.txt in the ImageJ folder;
+ * the settings that are not stored there (test mode, background subtraction,
+ * multi-threading) keep the value of the instance they are loaded onto.
+ */
+public final class IMDParameters {
+
+    // Mask source options
+    static final String[] MASK_SOURCES = {"CFP (Donor)", "FRET", "Average (CFP+FRET)/2"};
+
+    // Background subtraction methods (order matches the IMDBackground method constants;
+    // labels are kept from Subtract Background Plus so saved parameters still load,
+    // except the rolling ball, which ImageJ shrinks above a radius of 10)
+    static final String[] BG_METHODS = {
+        "Sliding paraboloid (separable, fast)",
+        "Rolling ball (shrunk above radius 10)",
+        "Morphological opening (flat disk)"
+    };
+
+    // Label of the rolling ball in parameter files saved before it was renamed
+    private static final String LEGACY_ROLLING_BALL = "Rolling ball (full resolution)";
+
+    // Temporal filters (order matches the IMDTemporalFilter constants)
+    static final String[] TEMPORAL_FILTERS = {"Mean", "Median"};
+
+    // Binning choices (index + 1 = block size)
+    static final String[] BINNINGS = {"None", "2x2", "3x3", "4x4"};
+
+    private static final String FILE_NAME = "IMD_parameters.txt";
+
+    private final double rmax, rmin, dmax, dmin;
+    private final String maskSource;
+    private final String lut;
+    private final boolean subtractBackground;
+    private final String bgMethod;
+    private final double bgRadius, bgSmoothing;
+    private final double bgCacheMB;
+    private final String bgCacheDir;
+    private final double bgCacheDiskMB;
+    private final String temporalFilter;
+    private final int temporalWindow;
+    private final boolean temporalMask;
+    private final int binning;
+    private final boolean restrictToRoi;
+    private final boolean autoRange;
+    private final double autoRatioLow, autoRatioHigh, autoMaskLow, autoMaskHigh;
+    private final int autoSampleStep;
+    private final boolean testMode, livePreview, watchMode, virtualOutput;
+    private final double frameCacheMB;
+    private final String streamOutput, streamDir;
+    private final boolean multiThreaded, colorTable;
+    private final int threads;
+    private final double memoryBudgetMB;
+    private final boolean exportMetrics;
+    private final int acceptorChannel, donorChannel;
+
+    private IMDParameters(Builder b) {
+        rmax = b.rmax;
+        rmin = b.rmin;
+        dmax = b.dmax;
+        dmin = b.dmin;
+        maskSource = b.maskSource;
+        lut = b.lut;
+        subtractBackground = b.subtractBackground;
+        bgMethod = b.bgMethod;
+        bgRadius = b.bgRadius;
+        bgSmoothing = b.bgSmoothing;
+        bgCacheMB = b.bgCacheMB;
+        bgCacheDir = b.bgCacheDir;
+        bgCacheDiskMB = b.bgCacheDiskMB;
+        temporalFilter = b.temporalFilter;
+        temporalWindow = b.temporalWindow;
+        temporalMask = b.temporalMask;
+        binning = b.binning;
+        restrictToRoi = b.restrictToRoi;
+        autoRange = b.autoRange;
+        autoRatioLow = b.autoRatioLow;
+        autoRatioHigh = b.autoRatioHigh;
+        autoMaskLow = b.autoMaskLow;
+        autoMaskHigh = b.autoMaskHigh;
+        autoSampleStep = b.autoSampleStep;
+        testMode = b.testMode;
+        livePreview = b.livePreview;
+        watchMode = b.watchMode;
+        virtualOutput = b.virtualOutput;
+        frameCacheMB = b.frameCacheMB;
+        streamOutput = b.streamOutput;
+        streamDir = b.streamDir;
+        multiThreaded = b.multiThreaded;
+        colorTable = b.colorTable;
+        threads = b.threads;
+        memoryBudgetMB = b.memoryBudgetMB;
+        exportMetrics = b.exportMetrics;
+        acceptorChannel = b.acceptorChannel;
+        donorChannel = b.donorChannel;
+    }
+
+    /**
+     * Builder initialised with the default settings
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Builder initialised with these settings
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    /**
+     * Default settings overlaid with IMD_parameters.txt (if present)
+     */
+    public static IMDParameters load() {
+        return builder().build().loadOnto();
+    }
+
+    /**
+     * These settings overlaid with the values stored in IMD_parameters.txt;
+     * unreadable files and values are ignored
+     */
+    public IMDParameters loadOnto() {
+        String ijDir = IJ.getDirectory("imagej");
+        if (ijDir == null) return this;
+
+        File f = new File(ijDir + FILE_NAME);
+        if (!f.exists()) return this;
+
+        Builder b = toBuilder();
+        try (BufferedReader reader = new BufferedReader(new FileReader(f))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("rmax=")) {
+                    b.rmax = Double.parseDouble(line.substring(5));
+                } else if (line.startsWith("rmin=")) {
+                    b.rmin = Double.parseDouble(line.substring(5));
+                } else if (line.startsWith("dmax=")) {
+                    b.dmax = Double.parseDouble(line.substring(5));
+                } else if (line.startsWith("dmin=")) {
+                    b.dmin = Double.parseDouble(line.substring(5));
+                } else if (line.startsWith("rolling_ball_radius=")) {
+                    b.bgRadius = Double.parseDouble(line.substring(20));
+                } else if (line.startsWith("bg_smoothing=")) {
+                    b.bgSmoothing = Double.parseDouble(line.substring(13));
+                } else if (line.startsWith("bg_cache_mb=")) {
+                    b.bgCacheMB = Double.parseDouble(line.substring(12));
+                } else if (line.startsWith("bg_cache_dir=")) {
+                    b.bgCacheDir = line.substring(13).trim();
+                } else if (line.startsWith("bg_cache_disk_mb=")) {
+                    b.bgCacheDiskMB = Double.parseDouble(line.substring(17));
+                } else if (line.startsWith("bg_method=")) {
+                    b.bgMethod = BG_METHODS[bgMethodIndex(line.substring(10).trim())];
+                } else if (line.startsWith("temporal_filter=")) {
+                    b.temporalFilter = line.substring(16).trim();
+                } else if (line.startsWith("temporal_window=")) {
+                    b.temporalWindow = Math.max(1, Integer.parseInt(line.substring(16).trim()));
+                } else if (line.startsWith("temporal_mask=")) {
+                    b.temporalMask = Boolean.parseBoolean(line.substring(14).trim());
+                } else if (line.startsWith("binning=")) {
+                    b.binning(Integer.parseInt(line.substring(8).trim()));
+                } else if (line.startsWith("roi_only=")) {
+                    b.restrictToRoi = Boolean.parseBoolean(line.substring(9).trim());
+                } else if (line.startsWith("lut=")) {
+                    b.lut = line.substring(4).trim();
+                } else if (line.startsWith("mask_source=")) {
+                    b.maskSource = line.substring(12).trim();
+                } else if (line.startsWith("auto_range=")) {
+                    b.autoRange = Boolean.parseBoolean(line.substring(11).trim());
+                } else if (line.startsWith("auto_ratio_low=")) {
+                    b.autoRatioLow = Double.parseDouble(line.substring(15));
+                } else if (line.startsWith("auto_ratio_high=")) {
+                    b.autoRatioHigh = Double.parseDouble(line.substring(16));
+                } else if (line.startsWith("auto_mask_low=")) {
+                    b.autoMaskLow = Double.parseDouble(line.substring(14));
+                } else if (line.startsWith("auto_mask_high=")) {
+                    b.autoMaskHigh = Double.parseDouble(line.substring(15));
+                } else if (line.startsWith("auto_sample_step=")) {
+                    b.autoSampleStep(Integer.parseInt(line.substring(17).trim()));
+                } else if (line.startsWith("color_table=")) {
+                    b.colorTable = Boolean.parseBoolean(line.substring(12).trim());
+                } else if (line.startsWith("threads=")) {
+                    b.threads = Integer.parseInt(line.substring(8).trim());
+                } else if (line.startsWith("virtual_output=")) {
+                    b.virtualOutput = Boolean.parseBoolean(line.substring(15).trim());
+                } else if (line.startsWith("frame_cache_mb=")) {
+                    b.frameCacheMB = Double.parseDouble(line.substring(15));
+                } else if (line.startsWith("stream_output=")) {
+                    b.streamOutput = line.substring(14).trim();
+                } else if (line.startsWith("stream_dir=")) {
+                    b.streamDir = line.substring(11).trim();
+                } else if (line.startsWith("watch_mode=")) {
+                    b.watchMode = Boolean.parseBoolean(line.substring(11).trim());
+                } else if (line.startsWith("live_preview=")) {
+                    b.livePreview = Boolean.parseBoolean(line.substring(13).trim());
+                } else if (line.startsWith("export_metrics=")) {
+                    b.exportMetrics = Boolean.parseBoolean(line.substring(15).trim());
+                } else if (line.startsWith("memory_budget_mb=")) {
+                    b.memoryBudgetMB = Double.parseDouble(line.substring(17));
+                } else if (line.startsWith("acceptor_channel=")) {
+                    b.acceptorChannel = Integer.parseInt(line.substring(17).trim());
+                } else if (line.startsWith("donor_channel=")) {
+                    b.donorChannel = Integer.parseInt(line.substring(14).trim());
+                }
+            }
+        } catch (Exception e) {
+            // Ignore errors, use defaults
+        }
+        return b.build();
+    }
+
+    /**
+     * Save these settings to IMD_parameters.txt in the ImageJ folder
+     */
+    public void save() {
+        String ijDir = IJ.getDirectory("imagej");
+        if (ijDir == null) return;
+
+        String paramFile = ijDir + FILE_NAME;
+        try (PrintWriter w = new PrintWriter(new FileWriter(paramFile))) {
+            w.println("rmax=" + rmax);
+            w.println("rmin=" + rmin);
+            w.println("dmax=" + dmax);
+            w.println("dmin=" + dmin);
+            w.println("rolling_ball_radius=" + bgRadius);
+            w.println("bg_smoothing=" + bgSmoothing);
+            w.println("bg_method=" + bgMethod);
+            w.println("bg_cache_mb=" + bgCacheMB);
+            w.println("bg_cache_dir=" + bgCacheDir);
+            w.println("bg_cache_disk_mb=" + bgCacheDiskMB);
+            w.println("temporal_filter=" + temporalFilter);
+            w.println("temporal_window=" + temporalWindow);
+            w.println("temporal_mask=" + temporalMask);
+            w.println("binning=" + binning);
+            w.println("roi_only=" + restrictToRoi);
+            w.println("lut=" + lut);
+            w.println("mask_source=" + maskSource);
+            w.println("auto_range=" + autoRange);
+            w.println("auto_ratio_low=" + autoRatioLow);
+            w.println("auto_ratio_high=" + autoRatioHigh);
+            w.println("auto_mask_low=" + autoMaskLow);
+            w.println("auto_mask_high=" + autoMaskHigh);
+            w.println("auto_sample_step=" + autoSampleStep);
+            w.println("color_table=" + colorTable);
+            w.println("threads=" + threads);
+            w.println("memory_budget_mb=" + memoryBudgetMB);
+            w.println("export_metrics=" + exportMetrics);
+            w.println("live_preview=" + livePreview);
+            w.println("watch_mode=" + watchMode);
+            w.println("virtual_output=" + virtualOutput);
+            w.println("frame_cache_mb=" + frameCacheMB);
+            w.println("stream_output=" + streamOutput);
+            w.println("stream_dir=" + streamDir);
+            w.println("acceptor_channel=" + acceptorChannel);
+            w.println("donor_channel=" + donorChannel);
+            IJ.log("Parameters saved to: " + paramFile);
+        } catch (Exception e) {
+            IJ.log("Warning: Could not save parameters");
+        }
+    }
+
+    /**
+     * Index of a BG_METHODS label (IMDBackground method constant)
+     */
+    static int bgMethodIndex(String method) {
+        for (int i = 0; i < BG_METHODS.length; i++) {
+            if (BG_METHODS[i].equals(method)) return i;
+        }
+        return LEGACY_ROLLING_BALL.equals(method) ? IMDBackground.ROLLING_BALL : IMDBackground.PARABOLOID;
+    }
+
+    /**
+     * Macro options (as recorded, e.g. "bg=[Rolling ball (full resolution)]")
+     * with BG method labels used by earlier versions replaced by the current
+     * ones, so recorded macros still select a valid dialog choice
+     */
+    static String aliasLegacyOptions(String options) {
+        if (options == null) return null;
+        return options.replace("=[" + LEGACY_ROLLING_BALL + "]", "=[" + BG_METHODS[IMDBackground.ROLLING_BALL] + "]");
+    }
+
+    /**
+     * Index of a TEMPORAL_FILTERS label (IMDTemporalFilter constant)
+     */
+    static int temporalFilterIndex(String filter) {
+        for (int i = 0; i < TEMPORAL_FILTERS.length; i++) {
+            if (TEMPORAL_FILTERS[i].equals(filter)) return i;
+        }
+        return IMDTemporalFilter.MEAN;
+    }
+
+    public double getRmax() { return rmax; }
+    public double getRmin() { return rmin; }
+    public double getDmax() { return dmax; }
+    public double getDmin() { return dmin; }
+    public String getMaskSource() { return maskSource; }
+    public String getLut() { return lut; }
+    public boolean isSubtractBackground() { return subtractBackground; }
+    public String getBgMethod() { return bgMethod; }
+    public double getBgRadius() { return bgRadius; }
+    public double getBgSmoothing() { return bgSmoothing; }
+    public double getBgCacheMB() { return bgCacheMB; }
+    public String getBgCacheDir() { return bgCacheDir; }
+    public double getBgCacheDiskMB() { return bgCacheDiskMB; }
+    public String getTemporalFilter() { return temporalFilter; }
+    public int getTemporalWindow() { return temporalWindow; }
+    public boolean isTemporalMask() { return temporalMask; }
+    public int getBinning() { return binning; }
+    public boolean isRestrictToRoi() { return restrictToRoi; }
+    public boolean isAutoRange() { return autoRange; }
+    public double getAutoRatioLow() { return autoRatioLow; }
+    public double getAutoRatioHigh() { return autoRatioHigh; }
+    public double getAutoMaskLow() { return autoMaskLow; }
+    public double getAutoMaskHigh() { return autoMaskHigh; }
+    public int getAutoSampleStep() { return autoSampleStep; }
+    public boolean isTestMode() { return testMode; }
+    public boolean isLivePreview() { return livePreview; }
+    public boolean isWatchMode() { return watchMode; }
+    public boolean isVirtualOutput() { return virtualOutput; }
+    public double getFrameCacheMB() { return frameCacheMB; }
+    public String getStreamOutput() { return streamOutput; }
+    public String getStreamDir() { return streamDir; }
+    public boolean isMultiThreaded() { return multiThreaded; }
+    public boolean isColorTable() { return colorTable; }
+    public int getThreads() { return threads; }
+    public double getMemoryBudgetMB() { return memoryBudgetMB; }
+    public boolean isExportMetrics() { return exportMetrics; }
+    public int getAcceptorChannel() { return acceptorChannel; }
+    public int getDonorChannel() { return donorChannel; }
+
+    /**
+     * Mutable settings; build() makes the immutable copy
+     */
+    public static final class Builder {
+        private double rmax = 3.0;
+        private double rmin = -1.0;
+        private double dmax = 6000.0;
+        private double dmin = 0.0;
+        private String maskSource = MASK_SOURCES[0];
+        private String lut = "physics";
+        private boolean subtractBackground = false;
+        private String bgMethod = BG_METHODS[0];
+        private double bgRadius = 50.0;
+        private double bgSmoothing = 2.0;          // Gaussian pre-smoothing sigma before the estimate
+        private double bgCacheMB = 0;              // Background-subtracted planes kept across runs (0 = off)
+        private String bgCacheDir = "";            // Optional folder for planes evicted from memory
+        private double bgCacheDiskMB = 2048;       // Limit of the spill folder
+        private String temporalFilter = TEMPORAL_FILTERS[0];
+        private int temporalWindow = 1;            // Frames in the trailing window (1 = off)
+        private boolean temporalMask = false;      // Smooth the mask-source intensity as well
+        private int binning = 1;                   // Sum factor x factor blocks before the ratio (1 = off)
+        private boolean restrictToRoi = false;     // Render only the area ROI of the source (cropped)
+        private boolean autoRange = false;         // Set ratio/intensity limits from histogram percentiles
+        private double autoRatioLow = 1.0;         // Percentiles (0-100) used for rmin/rmax
+        private double autoRatioHigh = 99.0;
+        private double autoMaskLow = 1.0;          // Percentiles (0-100) used for dmin/dmax
+        private double autoMaskHigh = 99.5;
+        private int autoSampleStep = 1;            // Histogram every Nth pixel (1 = all pixels)
+        private boolean testMode = false;
+        private boolean livePreview = false;       // Tune ranges on the current frame before processing
+        private boolean watchMode = false;         // Keep processing frames appended during acquisition
+        private boolean virtualOutput = false;     // Render output frames on demand (VirtualStack)
+        private double frameCacheMB = 256;         // LRU cache of rendered frames for virtual output
+        private String streamOutput = IMDStreamWriter.NONE;  // Write frames to disk as they are produced
+        private String streamDir = "";             // Folder of the streamed file ("" = source folder)
+        private boolean multiThreaded = true;
+        private boolean colorTable = false;        // 256x256 ratio x intensity lookup instead of per-pixel math
+        private int threads = 0;                   // Worker threads for the shared pool (0 = all cores)
+        private double memoryBudgetMB = 0;         // Working-set budget for chunked processing (0 = auto)
+        private boolean exportMetrics = false;     // Write per-stage metrics as CSV/JSON next to the source
+        private int acceptorChannel = 1;
+        private int donorChannel = 2;
+
+        private Builder() {
+        }
+
+        private Builder(IMDParameters p) {
+            rmax = p.rmax;
+            rmin = p.rmin;
+            dmax = p.dmax;
+            dmin = p.dmin;
+            maskSource = p.maskSource;
+            lut = p.lut;
+            subtractBackground = p.subtractBackground;
+            bgMethod = p.bgMethod;
+            bgRadius = p.bgRadius;
+            bgSmoothing = p.bgSmoothing;
+            bgCacheMB = p.bgCacheMB;
+            bgCacheDir = p.bgCacheDir;
+            bgCacheDiskMB = p.bgCacheDiskMB;
+            temporalFilter = p.temporalFilter;
+            temporalWindow = p.temporalWindow;
+            temporalMask = p.temporalMask;
+            binning = p.binning;
+            restrictToRoi = p.restrictToRoi;
+            autoRange = p.autoRange;
+            autoRatioLow = p.autoRatioLow;
+            autoRatioHigh = p.autoRatioHigh;
+            autoMaskLow = p.autoMaskLow;
+            autoMaskHigh = p.autoMaskHigh;
+            autoSampleStep = p.autoSampleStep;
+            testMode = p.testMode;
+            livePreview = p.livePreview;
+            watchMode = p.watchMode;
+            virtualOutput = p.virtualOutput;
+            frameCacheMB = p.frameCacheMB;
+            streamOutput = p.streamOutput;
+            streamDir = p.streamDir;
+            multiThreaded = p.multiThreaded;
+            colorTable = p.colorTable;
+            threads = p.threads;
+            memoryBudgetMB = p.memoryBudgetMB;
+            exportMetrics = p.exportMetrics;
+            acceptorChannel = p.acceptorChannel;
+            donorChannel = p.donorChannel;
+        }
+
+        /**
+         * Ratio mapped to the first and last LUT entry
+         */
+        public Builder ratioRange(double min, double max) {
+            rmin = min;
+            rmax = max;
+            return this;
+        }
+
+        /**
+         * Mask-source intensity mapped to black and to full brightness
+         */
+        public Builder intensityRange(double min, double max) {
+            dmin = min;
+            dmax = max;
+            return this;
+        }
+
+        /**
+         * "CFP (Donor)", "FRET" or "Average (CFP+FRET)/2"
+         */
+        public Builder maskSource(String source) {
+            maskSource = source;
+            return this;
+        }
+
+        /**
+         * LUT name (built-in or a .lut file in the luts folder)
+         */
+        public Builder lut(String name) {
+            lut = name;
+            return this;
+        }
+
+        public Builder subtractBackground(boolean enabled) {
+            subtractBackground = enabled;
+            return this;
+        }
+
+        /**
+         * Background method (one of the dialog's labels), radius and smoothing sigma
+         */
+        public Builder background(String method, double radius, double smoothing) {
+            bgMethod = method;
+            bgRadius = radius;
+            bgSmoothing = smoothing;
+            return this;
+        }
+
+        /**
+         * BG cache limits in MB (0 = off) and optional spill folder
+         */
+        public Builder bgCache(double memoryMB, String spillDir, double spillMB) {
+            bgCacheMB = memoryMB;
+            bgCacheDir = spillDir != null ? spillDir.trim() : "";
+            bgCacheDiskMB = spillMB;
+            return this;
+        }
+
+        /**
+         * Running "Mean" or "Median" of the ratio over the last window frames
+         * (1 = off), optionally also of the mask-source intensity
+         */
+        public Builder temporalSmoothing(String filter, int window, boolean smoothMask) {
+            temporalFilter = filter;
+            temporalWindow = Math.max(1, window);
+            temporalMask = smoothMask;
+            return this;
+        }
+
+        /**
+         * Sum factor x factor blocks of raw counts before the ratio (1 = full
+         * resolution, up to 4); the output is factor times smaller
+         */
+        public Builder binning(int factor) {
+            binning = Math.max(1, Math.min(IMDBinning.MAX_FACTOR, factor));
+            return this;
+        }
+
+        /**
+         * Render only the bounding box of the area ROI of the FRET (or CFP)
+         * image, black outside its shape; the whole image when there is none
+         */
+        public Builder restrictToRoi(boolean enabled) {
+            restrictToRoi = enabled;
+            return this;
+        }
+
+        public Builder autoRange(boolean enabled) {
+            autoRange = enabled;
+            return this;
+        }
+
+        /**
+         * Percentiles (0-100) of the ratio and intensity histograms used by auto-range
+         */
+        public Builder autoPercentiles(double ratioLow, double ratioHigh, double maskLow, double maskHigh) {
+            autoRatioLow = ratioLow;
+            autoRatioHigh = ratioHigh;
+            autoMaskLow = maskLow;
+            autoMaskHigh = maskHigh;
+            return this;
+        }
+
+        public Builder autoSampleStep(int step) {
+            autoSampleStep = Math.max(1, step);
+            return this;
+        }
+
+        public Builder testMode(boolean enabled) {
+            testMode = enabled;
+            return this;
+        }
+
+        public Builder livePreview(boolean enabled) {
+            livePreview = enabled;
+            return this;
+        }
+
+        public Builder watchMode(boolean enabled) {
+            watchMode = enabled;
+            return this;
+        }
+
+        public Builder virtualOutput(boolean enabled) {
+            virtualOutput = enabled;
+            return this;
+        }
+
+        public Builder frameCacheMB(double mb) {
+            frameCacheMB = mb;
+            return this;
+        }
+
+        /**
+         * One of IMDStreamWriter.FORMATS ("None" to keep the output in memory)
+         */
+        public Builder streamOutput(String format) {
+            streamOutput = format;
+            return this;
+        }
+
+        /**
+         * Folder of the streamed file (empty: the folder of the FRET source)
+         */
+        public Builder streamDirectory(String dir) {
+            streamDir = dir != null ? dir.trim() : "";
+            return this;
+        }
+
+        public Builder multiThreaded(boolean enabled) {
+            multiThreaded = enabled;
+            return this;
+        }
+
+        public Builder colorTable(boolean enabled) {
+            colorTable = enabled;
+            return this;
+        }
+
+        /**
+         * Parallelism of the shared worker pool (0 = all cores)
+         */
+        public Builder threads(int n) {
+            threads = n;
+            return this;
+        }
+
+        /**
+         * Working-set budget for chunked processing (0 = a quarter of the free heap)
+         */
+        public Builder memoryBudgetMB(double mb) {
+            memoryBudgetMB = mb;
+            return this;
+        }
+
+        public Builder exportMetrics(boolean enabled) {
+            exportMetrics = enabled;
+            return this;
+        }
+
+        /**
+         * Acceptor (FRET) and donor (CFP) channels of a multi-channel stack (1-based)
+         */
+        public Builder channels(int acceptor, int donor) {
+            acceptorChannel = acceptor;
+            donorChannel = donor;
+            return this;
+        }
+
+        public IMDParameters build() {
+            return new IMDParameters(this);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.fret.imd;
+
+import ij.*;
+import ij.io.FileInfo;
+import ij.process.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Plugin-wide cache of background-subtracted planes.
+ *
+ * Re-running on the same data with a different LUT, range or mask source
+ * then skips background subtraction, which dominates the run time. Entries
+ * are keyed by the source slice and the background parameters. Slices of
+ * file-backed virtual stacks are identified by file, modification time and
+ * stack index, so they are not even read on a hit; all other slices also
+ * carry a hash of their pixels, so edited images are never served stale.
+ *
+ * The cache is bounded in bytes with LRU eviction. With a spill folder,
+ * evicted planes are written there (again LRU-bounded) and read back on a
+ * later hit instead of being recomputed. Cached planes are shared: callers
+ * must not modify them.
+ */
+final class IMDPlaneCache {
+
+    private static IMDPlaneCache shared;
+
+    private final long maxBytes;
+    private final File spillDir;
+    private final long maxSpillBytes;
+
+    // Access-ordered: iteration starts at the least recently used plane
+    private final LinkedHashMap<Key, ImageProcessor> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Key, File> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes, diskBytes;
+    private long hits, misses;
+    private int spillCount;
+
+    private IMDPlaneCache(long maxBytes, File spillDir, long maxSpillBytes) {
+        this.maxBytes = maxBytes;
+        this.spillDir = spillDir;
+        this.maxSpillBytes = maxSpillBytes;
+    }
+
+    /**
+     * Shared cache with the given limits (null when maxBytes is 0). The cache
+     * is kept across runs and only rebuilt when a limit or the folder changes.
+     */
+    static synchronized IMDPlaneCache configure(long maxBytes, String spillPath, long maxSpillBytes) {
+        File dir = spillPath != null && !spillPath.trim().isEmpty() ? new File(spillPath.trim()) : null;
+        if (maxBytes <= 0) dir = null;
+        if (shared != null && shared.maxBytes == maxBytes && shared.maxSpillBytes == maxSpillBytes
+                && Objects.equals(shared.spillDir, dir)) {
+            return shared;
+        }
+        if (shared != null) shared.clear();
+        shared = null;
+        if (maxBytes <= 0) return null;
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            IJ.log("BG cache: cannot create spill folder " + dir + ", keeping planes in memory only");
+            dir = null;
+        }
+        shared = new IMDPlaneCache(maxBytes, dir, maxSpillBytes);
+        return shared;
+    }
+
+    /**
+     * Key of slice n of a view for the given background parameters. raw is
+     * the unprocessed slice; it is only needed when needsPixels(view).
+     */
+    static Key key(ChannelView view, int n, ImageProcessor raw, int method, double radius, double smoothing) {
+        String source = fileSource(view);
+        long hash = 0;
+        if (source == null) {
+            source = "image" + view.getImage().getID();
+            hash = hash(raw.getPixels());
+        }
+        return new Key(source + "#" + view.stackIndex(n), hash, method, radius, smoothing);
+    }
+
+    /**
+     * True when slices of the view are identified by their pixels (not by their file)
+     */
+    static boolean needsPixels(ChannelView view) {
+        return fileSource(view) == null;
+    }
+
+    /**
+     * "path@modified" for virtual stacks read from a file, otherwise null
+     */
+    private static String fileSource(ChannelView view) {
+        if (!view.isVirtual()) return null;
+        FileInfo fi = view.getImage().getOriginalFileInfo();
+        if (fi == null || fi.directory == null || fi.fileName == null) return null;
+        File file = new File(fi.directory, fi.fileName);
+        if (!file.isFile()) return null;
+        return file.getAbsolutePath() + "@" + file.lastModified() + ":" + file.length();
+    }
+
+    /**
+     * Cached plane, read back from the spill folder if needed; null on a miss.
+     * A spilled plane is taken out of the index under the lock but read
+     * outside it, so other threads are not held up by the disk.
+     */
+    ImageProcessor get(Key key) {
+        File file;
+        synchronized (this) {
+            ImageProcessor ip = memory.get(key);
+            if (ip != null) {
+                hits++;
+                return ip;
+            }
+            file = disk.remove(key);
+            if (file == null) {
+                misses++;
+                return null;
+            }
+            diskBytes -= file.length();
+        }
+        ImageProcessor ip = readSpilled(file);
+        file.delete();
+        synchronized (this) {
+            if (ip == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            // Another thread may have stored the plane meanwhile
+            ImageProcessor current = memory.get(key);
+            if (current != null) return current;
+            store(key, ip);
+            return ip;
+        }
+    }
+
+    synchronized void put(Key key, ImageProcessor ip) {
+        if (memory.containsKey(key)) return;
+        store(key, ip);
+    }
+
+    /**
+     * Reset the hit/miss counters (at the start of a run)
+     */
+    synchronized void resetCounters() {
+        hits = 0;
+        misses = 0;
+    }
+
+    synchronized String summary() {
+        String s = hits + " of " + (hits + misses) + " plane(s) reused, "
+                 + (memoryBytes >> 20) + " MB in memory";
+        if (spillDir != null) s += ", " + (diskBytes >> 20) + " MB spilled";
+        return s;
+    }
+
+    synchronized void clear() {
+        memory.clear();
+        for (File f : disk.values()) f.delete();
+        disk.clear();
+        memoryBytes = 0;
+        diskBytes = 0;
+    }
+
+    private void store(Key key, ImageProcessor ip) {
+        long bytes = bytes(ip);
+        if (bytes > maxBytes) return;
+        memory.put(key, ip);
+        memoryBytes += bytes;
+        Iterator<Map.Entry<Key, ImageProcessor>> it = memory.entrySet().iterator();
+        while (memoryBytes > maxBytes && it.hasNext()) {
+            Map.Entry<Key, ImageProcessor> eldest = it.next();
+            if (eldest.getKey().equals(key)) continue;
+            it.remove();
+            memoryBytes -= bytes(eldest.getValue());
+            spill(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private void spill(Key key, ImageProcessor ip) {
+        if (spillDir == null || bytes(ip) > maxSpillBytes) return;
+        File file = new File(spillDir, "imd-bg-" + Integer.toHexString(System.identityHashCode(this))
+                                       + "-" + (spillCount++) + ".plane");
+        try {
+            writeSpilled(file, ip);
+        } catch (IOException e) {
+            IJ.log("BG cache: cannot spill to " + spillDir + " (" + e.getMessage() + ")");
+            file.delete();
+            return;
+        }
+        file.deleteOnExit();
+        disk.put(key, file);
+        diskBytes += file.length();
+        Iterator<File> it = disk.values().iterator();
+        while (diskBytes > maxSpillBytes && it.hasNext()) {
+            File eldest = it.next();
+            it.remove();
+            diskBytes -= eldest.length();
+            eldest.delete();
+        }
+    }
+
+    private static long bytes(ImageProcessor ip) {
+        return (long) ip.getPixelCount() * ip.getBitDepth() / 8;
+    }
+
+    /**
+     * Spill file: bit depth, width, height, then the pixels in native order
+     */
+    private static void writeSpilled(File file, ImageProcessor ip) throws IOException {
+        int n = ip.getPixelCount();
+        ByteBuffer b = ByteBuffer.allocate(12 + (int) bytes(ip)).order(ByteOrder.nativeOrder());
+        b.putInt(ip.getBitDepth()).putInt(ip.getWidth()).putInt(ip.getHeight());
+        Object pixels = ip.getPixels();
+        if (pixels instanceof short[]) b.asShortBuffer().put((short[]) pixels, 0, n);
+        else if (pixels instanceof float[]) b.asFloatBuffer().put((float[]) pixels, 0, n);
+        else b.put((byte[]) pixels, 0, n);
+        b.rewind();
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                               StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (b.hasRemaining()) ch.write(b);
+        }
+    }
+
+    private static ImageProcessor readSpilled(File file) {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer b = ByteBuffer.allocate((int) ch.size()).order(ByteOrder.nativeOrder());
+            while (b.hasRemaining() && ch.read(b) >= 0) {
+                // fill
+            }
+            b.flip();
+            int bitDepth = b.getInt(), width = b.getInt(), height = b.getInt();
+            ByteBuffer data = b.slice().order(ByteOrder.nativeOrder());
+            int n = width * height;
+            if (bitDepth == 16) {
+                short[] pixels = new short[n];
+                data.asShortBuffer().get(pixels);
+                return new ShortProcessor(width, height, pixels, null);
+            }
+            if (bitDepth == 32) {
+                float[] pixels = new float[n];
+                data.asFloatBuffer().get(pixels);
+                return new FloatProcessor(width, height, pixels);
+            }
+            byte[] pixels = new byte[n];
+            data.get(pixels);
+            return new ByteProcessor(width, height, pixels);
+        } catch (IOException | RuntimeException e) {
+            IJ.log("BG cache: cannot read " + file + " (" + e + ")");
+            return null;
+        }
+    }
+
+    /**
+     * 64-bit hash of a pixel array
+     */
+    static long hash(Object pixels) {
+        long h = 0x9E3779B97F4A7C15L;
+        if (pixels instanceof short[]) {
+            for (short v : (short[]) pixels) h = (h ^ v) * 0x100000001B3L;
+        } else if (pixels instanceof byte[]) {
+            for (byte v : (byte[]) pixels) h = (h ^ v) * 0x100000001B3L;
+        } else if (pixels instanceof float[]) {
+            for (float v : (float[]) pixels) h = (h ^ Float.floatToRawIntBits(v)) * 0x100000001B3L;
+        } else if (pixels instanceof int[]) {
+            for (int v : (int[]) pixels) h = (h ^ v) * 0x100000001B3L;
+        }
+        return h;
+    }
+
+    /**
+     * Source slice plus background parameters
+     */
+    static final class Key {
+        private final String source;
+        private final long pixelHash;
+        private final int method;
+        private final double radius, smoothing;
+
+        Key(String source, long pixelHash, int method, double radius, double smoothing) {
+            this.source = source;
+            this.pixelHash = pixelHash;
+            this.method = method;
+            this.radius = radius;
+            this.smoothing = smoothing;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return source.equals(k.source) && pixelHash == k.pixelHash && method == k.method
+                && Double.compare(radius, k.radius) == 0 && Double.compare(smoothing, k.smoothing) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(source, pixelHash, method, radius, smoothing);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.fret.imd;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Cached ratio and mask-source planes of one frame for the live preview.
+ *
+ * The ratio is computed once when the preview opens. A parameter change
+ * only re-runs the LUT/mask mapping, optionally on a downsampled copy of
+ * the planes, so an update costs one pass of table lookups per pixel.
+ * At full resolution the output is identical to the processing kernels
+ * (with or without the colour table) for the frame as read and background
+ * subtracted; binning, ROI restriction and temporal smoothing are not
+ * previewed.
+ */
+final class IMDPreview {
+
+    // Largest side of the downsampled planes
+    static final int PREVIEW_SIZE = 1024;
+
+    private final Planes full;
+    private Planes small;
+
+    IMDPreview(float[] fretPixels, float[] cfpPixels, int width, int height) {
+        float[] ratio = new float[fretPixels.length];
+        for (int i = 0; i < ratio.length; i++) {
+            float cfpVal = cfpPixels[i];
+            float r = cfpVal != 0 ? fretPixels[i] / cfpVal : 0;
+            ratio[i] = Float.isNaN(r) ? 0 : r;
+        }
+        full = new Planes(fretPixels, cfpPixels, ratio, width, height);
+    }
+
+    /**
+     * Planes at full resolution, or subsampled so that neither side exceeds PREVIEW_SIZE
+     */
+    Planes planes(boolean downsampled) {
+        if (!downsampled) return full;
+        if (small == null) {
+            int step = Math.max(1, (Math.max(full.width, full.height) + PREVIEW_SIZE - 1) / PREVIEW_SIZE);
+            small = step == 1 ? full : full.subsample(step);
+        }
+        return small;
+    }
+
+    /**
+     * Map the cached planes to packed RGB with the given LUT (through
+     * colorTable from IMDEngine.buildColorTable when not null, as the run
+     * does) and ranges, in row bands sized for the parallelism of pool
+     * (null = calling thread only)
+     */
+    int[] render(Planes p, byte[] reds, byte[] greens, byte[] blues, int[] colorTable, int maskMode,
+                 float fRmin, float fRrange, float fDmin, float fDrange, ForkJoinPool pool) {
+        int[] rgb = new int[p.width * p.height];
+        int bandRows = IMDEngine.bandRows(p.width, p.height,
+                                          pool != null ? pool.getParallelism() : 1);
+        List<Callable<Object>> bands = new ArrayList<>();
+        for (int row = 0; row < p.height; row += bandRows) {
+            final int from = row * p.width;
+            final int to = Math.min(p.height, row + bandRows) * p.width;
+            bands.add(Executors.callable(() -> renderRange(p, rgb, from, to, reds, greens, blues, colorTable,
+                                                           maskMode, fRmin, fRrange, fDmin, fDrange)));
+        }
+        if (bands.size() == 1 || pool == null) {
+            renderRange(p, rgb, 0, rgb.length, reds, greens, blues, colorTable,
+                        maskMode, fRmin, fRrange, fDmin, fDrange);
+            return rgb;
+        }
+        try {
+            for (Future<Object> f : pool.invokeAll(bands)) f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw IMDExecutor.propagate(e.getCause());
+        }
+        return rgb;
+    }
+
+    private static void renderRange(Planes p, int[] rgb, int from, int to,
+                                    byte[] reds, byte[] greens, byte[] blues, int[] colorTable, int maskMode,
+                                    float fRmin, float fRrange, float fDmin, float fDrange) {
+        final float[] fret = p.fret;
+        final float[] cfp = p.cfp;
+        final float[] ratio = p.ratio;
+        for (int i = from; i < to; i++) {
+            float maskValue = maskMode == IMDEngine.MASK_FRET ? fret[i]
+                            : maskMode == IMDEngine.MASK_AVERAGE ? (cfp[i] + fret[i]) / 2.0f
+                            : cfp[i];
+            rgb[i] = colorTable != null
+                     ? IMDEngine.shadeTable(ratio[i], maskValue, fRmin, fRrange, fDmin, fDrange, colorTable)
+                     : IMDEngine.shade(ratio[i], maskValue, fRmin, fRrange, fDmin, fDrange,
+                                       reds, greens, blues);
+        }
+    }
+
+    /**
+     * Largest finite ratio of the frame (for slider ranges)
+     */
+    float maxRatio() {
+        float max = 0;
+        for (float r : full.ratio) {
+            if (r > max && !Float.isInfinite(r)) max = r;
+        }
+        return max;
+    }
+
+    /**
+     * Largest value of the chosen mask source (for slider ranges)
+     */
+    float maxMask(int maskMode) {
+        float max = 0;
+        for (int i = 0; i < full.fret.length; i++) {
+            float v = maskMode == IMDEngine.MASK_FRET ? full.fret[i]
+                    : maskMode == IMDEngine.MASK_AVERAGE ? (full.cfp[i] + full.fret[i]) / 2.0f
+                    : full.cfp[i];
+            if (v > max) max = v;
+        }
+        return max;
+    }
+
+    /**
+     * FRET, CFP and ratio planes of one resolution
+     */
+    static final class Planes {
+        final float[] fret, cfp, ratio;
+        final int width, height;
+
+        Planes(float[] fret, float[] cfp, float[] ratio, int width, int height) {
+            this.fret = fret;
+            this.cfp = cfp;
+            this.ratio = ratio;
+            this.width = width;
+            this.height = height;
+        }
+
+        Planes subsample(int step) {
+            int w = (width + step - 1) / step;
+            int h = (height + step - 1) / step;
+            float[] f = new float[w * h], c = new float[w * h], r = new float[w * h];
+            for (int y = 0; y < h; y++) {
+                int src = y * step * width;
+                int dst = y * w;
+                for (int x = 0; x < w; x++, src += step, dst++) {
+                    f[dst] = fret[src];
+                    c[dst] = cfp[src];
+                    r[dst] = ratio[src];
+                }
+            }
+            return new Planes(f, c, r, w, h);
+        }
+    }
+}
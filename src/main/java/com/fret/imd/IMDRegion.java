@@ -0,0 +1,81 @@
+package com.fret.imd;
+
+import ij.*;
+import ij.gui.Roi;
+import ij.process.*;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Area of the sources that is rendered when processing is restricted to the
+ * ROI: the bounding box of the ROI (clipped to the image) and, for
+ * non-rectangular ROIs, the output pixels outside its shape.
+ *
+ * Only the bounding box is read, so the output is cropped to it. Outside
+ * pixels get NaN inputs, which the kernels render black without computing
+ * the ratio. With binning a block counts as inside when its centre is.
+ */
+final class IMDRegion {
+
+    final Rectangle bounds;
+    private final int[] outside;    // Output pixels outside the shape
+
+    private IMDRegion(Rectangle bounds, int[] outside) {
+        this.bounds = bounds;
+        this.outside = outside;
+    }
+
+    /**
+     * Region of the area ROI of the FRET image (or else of the CFP image) for
+     * bin x bin binning, or null when neither has one inside the image
+     */
+    static IMDRegion of(ChannelView fretView, ChannelView cfpView, int bin) {
+        Roi roi = areaRoi(fretView.getImage());
+        if (roi == null) roi = areaRoi(cfpView.getImage());
+        if (roi == null) return null;
+
+        Rectangle roiBounds = roi.getBounds();
+        Rectangle bounds = roiBounds.intersection(new Rectangle(fretView.getWidth(), fretView.getHeight()));
+        if (bounds.width < bin || bounds.height < bin) return null;
+
+        ImageProcessor mask = roi.getMask();
+        int bw = bounds.width / bin, bh = bounds.height / bin;
+        int[] outside = new int[0];
+        if (mask != null) {
+            int n = 0;
+            int[] indices = new int[bw * bh];
+            for (int by = 0; by < bh; by++) {
+                for (int bx = 0; bx < bw; bx++) {
+                    int x = bounds.x - roiBounds.x + bx * bin + bin / 2;
+                    int y = bounds.y - roiBounds.y + by * bin + bin / 2;
+                    if (mask.get(x, y) == 0) indices[n++] = by * bw + bx;
+                }
+            }
+            outside = Arrays.copyOf(indices, n);
+        }
+        return new IMDRegion(bounds, outside);
+    }
+
+    private static Roi areaRoi(ImagePlus imp) {
+        Roi roi = imp != null ? imp.getRoi() : null;
+        return roi != null && roi.isArea() ? roi : null;
+    }
+
+    /**
+     * Mark the output pixels outside the shape in both kernel input planes
+     */
+    void clearOutside(float[] fret, float[] cfp) {
+        for (int i : outside) {
+            fret[i] = Float.NaN;
+            cfp[i] = Float.NaN;
+        }
+    }
+
+    /**
+     * Description for the log
+     */
+    String describe() {
+        return bounds.width + "x" + bounds.height + " at (" + bounds.x + "," + bounds.y + ")"
+               + (outside.length > 0 ? ", " + outside.length + " output pixels outside the shape" : "");
+    }
+}
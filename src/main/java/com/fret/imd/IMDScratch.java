@@ -0,0 +1,92 @@
+package com.fret.imd;
+
+import ij.process.*;
+
+/**
+ * Per-thread scratch buffers for the slice kernels.
+ *
+ * Every thread that renders slices (pool workers, the calling thread, the
+ * watcher) keeps one set of buffers, grown on demand and reused for every
+ * following slice, so steady-state processing allocates only the output
+ * pixels of each frame. A set is taken with acquire() and handed back with
+ * release() once the kernels have read it. If the set of the current thread
+ * is still taken (a worker that picks up another slice while waiting for a
+ * join), acquire() returns a private set instead, so buffers are never
+ * shared between two slices.
+ */
+final class IMDScratch {
+
+    private static final ThreadLocal<IMDScratch> LOCAL = ThreadLocal.withInitial(IMDScratch::new);
+
+    private boolean taken;
+    private float[] fret = new float[0];
+    private float[] cfp = new float[0];
+    private FloatProcessor work;
+    private float[][] band = {new float[0], new float[0]};
+
+    private IMDScratch() {
+    }
+
+    /**
+     * Buffers of the current thread (or a private set if they are taken)
+     */
+    static IMDScratch acquire() {
+        IMDScratch scratch = LOCAL.get();
+        if (scratch.taken) return new IMDScratch();
+        scratch.taken = true;
+        return scratch;
+    }
+
+    /**
+     * Hand the buffers back; arrays obtained from them must no longer be used
+     */
+    void release() {
+        taken = false;
+    }
+
+    /**
+     * Float buffer of at least size pixels for the FRET channel
+     */
+    float[] fret(int size) {
+        if (fret.length < size) fret = new float[size];
+        return fret;
+    }
+
+    /**
+     * Float buffer of at least size pixels for the CFP channel
+     */
+    float[] cfp(int size) {
+        if (cfp.length < size) cfp = new float[size];
+        return cfp;
+    }
+
+    /**
+     * Float buffer of the current thread holding a copy of ip, for filters that
+     * work in place (the background estimate). Only valid until the next call
+     * on the same thread; the caller must not fork or join while using it.
+     */
+    static FloatProcessor floatCopy(ImageProcessor ip) {
+        IMDScratch scratch = LOCAL.get();
+        int width = ip.getWidth(), height = ip.getHeight();
+        FloatProcessor fp = scratch.work;
+        if (fp == null || fp.getWidth() != width || fp.getHeight() != height) {
+            fp = new FloatProcessor(width, height);
+            scratch.work = fp;
+        }
+        float[] dst = (float[]) fp.getPixels();
+        IMDEngine.getFloatPixels(ip, dst);
+        fp.resetRoi();
+        return fp;
+    }
+
+    /**
+     * Two float buffers of the current thread, at least size long, for the
+     * ratio and mask values of one band of the temporal filter. Same rules as
+     * floatCopy().
+     */
+    static float[][] bandBuffers(int size) {
+        IMDScratch scratch = LOCAL.get();
+        if (scratch.band[0].length < size) scratch.band = new float[][] {new float[size], new float[size]};
+        return scratch.band;
+    }
+}
@@ -0,0 +1,49 @@
+package com.fret.imd;
+
+import jdk.jfr.*;
+
+/**
+ * JFR event for one timed IMD stage.
+ *
+ * Only referenced through IMDMetrics after checking that the runtime has
+ * Flight Recorder, so the plugin still loads on older Java 8 builds.
+ */
+@Name("com.fret.imd.Stage")
+@Label("IMD Stage")
+@Category("Intensity Modulated Display")
+@Description("One timed stage of an IMD run (copy, background, extract, kernel, assembly)")
+@StackTrace(false)
+class IMDStageEvent extends Event {
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Pixels")
+    long pixels;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocated;
+
+    private static final EventType TYPE = EventType.getEventType(IMDStageEvent.class);
+
+    /**
+     * Begin an event, or return null (without allocating) when no recording
+     * has it enabled
+     */
+    static Object start() {
+        if (!TYPE.isEnabled()) return null;
+        IMDStageEvent event = new IMDStageEvent();
+        event.begin();
+        return event;
+    }
+
+    static void commit(Object started, String stage, long pixels, long allocated) {
+        IMDStageEvent event = (IMDStageEvent) started;
+        event.end();
+        event.stage = stage;
+        event.pixels = pixels;
+        event.allocated = allocated;
+        event.commit();
+    }
+}
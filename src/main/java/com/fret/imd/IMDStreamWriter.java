@@ -0,0 +1,252 @@
+package com.fret.imd;
+
+import ij.*;
+import ij.plugin.Animator;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.*;
+
+/**
+ * Writes RGB output frames to a file while they are produced.
+ *
+ * Frames are encoded (and optionally compressed) in parallel on the worker
+ * pool; a dedicated writer thread appends them to the file in frame order.
+ * At most a bounded number of frames are queued, so the output is never
+ * held in memory as a whole and saving overlaps with computation. stack()
+ * gives an ImageStack facade that the processing paths append to.
+ */
+abstract class IMDStreamWriter implements AutoCloseable {
+
+    // Output formats offered in the dialog
+    static final String NONE = "None";
+    static final String TIFF = "TIFF";
+    static final String TIFF_DEFLATE = "TIFF (Deflate)";
+    static final String AVI = "AVI (uncompressed)";
+    static final String AVI_JPEG = "AVI (JPEG)";
+    static final String[] FORMATS = {NONE, TIFF, TIFF_DEFLATE, AVI, AVI_JPEG};
+
+    // Encoded frames waiting for the writer thread, per worker thread
+    private static final int FRAMES_PER_THREAD = 2;
+
+    // Classic TIFF and RIFF AVI use 32-bit offsets and sizes
+    static final long MAX_FILE_SIZE = 0xffffffffL;
+
+    private static final Future<byte[]> END = new CompletableFuture<>();
+
+    final File file;
+    final int width, height;
+    final FileChannel channel;
+    private final ExecutorService pool;
+    private final BlockingQueue<Future<byte[]>> queue;
+    private final Thread writer;
+    private volatile Throwable failure;
+    private int frames;
+    private boolean closed;
+
+    IMDStreamWriter(File file, int width, int height, ExecutorService pool, int parallelism)
+            throws IOException {
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.pool = pool;
+        // Never overwrites: the caller picks a name that does not exist yet
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.queue = new ArrayBlockingQueue<>(FRAMES_PER_THREAD * Math.max(1, parallelism));
+        this.writer = new Thread(this::drain, "IMD-stream-writer");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Open a writer for one of FORMATS; pool (may be null) encodes the frames
+     */
+    static IMDStreamWriter open(String format, File file, int width, int height, double fps,
+                                ExecutorService pool, int parallelism) throws IOException {
+        IMDStreamWriter w;
+        if (TIFF.equals(format) || TIFF_DEFLATE.equals(format)) {
+            w = new TiffStreamWriter(file, width, height, TIFF_DEFLATE.equals(format), pool, parallelism);
+        } else if (AVI.equals(format) || AVI_JPEG.equals(format)) {
+            w = new AviStreamWriter(file, width, height, fps, AVI_JPEG.equals(format), pool, parallelism);
+        } else {
+            throw new IllegalArgumentException("Unknown output format: " + format);
+        }
+        try {
+            w.writeHeader();
+        } catch (IOException e) {
+            w.channel.close();
+            throw e;
+        }
+        w.writer.start();
+        return w;
+    }
+
+    /**
+     * File name extension for a format
+     */
+    static String extension(String format) {
+        return AVI.equals(format) || AVI_JPEG.equals(format) ? ".avi" : ".tif";
+    }
+
+    /**
+     * Encode one frame of packed RGB pixels (called concurrently on the pool)
+     */
+    abstract byte[] encode(int[] rgb) throws IOException;
+
+    /**
+     * Write the file header (called once before any frame)
+     */
+    abstract void writeHeader() throws IOException;
+
+    /**
+     * Append one encoded frame (called on the writer thread, in frame order)
+     */
+    abstract void writeFrame(byte[] data) throws IOException;
+
+    /**
+     * Complete the file after the last frame (index, counts, sizes)
+     */
+    abstract void finish() throws IOException;
+
+    /**
+     * Queue a frame; blocks while the writer is behind. A write failure is rethrown.
+     */
+    void add(final int[] rgb) {
+        checkFailure();
+        Future<byte[]> encoded = pool != null ? pool.submit(() -> encode(rgb))
+                                              : CompletableFuture.completedFuture(encodeNow(rgb));
+        try {
+            queue.put(encoded);
+            frames++;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while writing " + file.getName());
+        }
+    }
+
+    int getFrames() {
+        return frames;
+    }
+
+    /**
+     * Flush the queued frames and complete the file. Write failures are rethrown.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(END);
+                writer.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        try {
+            if (failure == null) finish();
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        checkFailure();
+    }
+
+    /**
+     * ImageStack that sends added frames to this writer instead of keeping them
+     */
+    ImageStack stack() {
+        return new ImageStack(width, height) {
+            @Override
+            public void addSlice(String sliceLabel, Object pixels) {
+                add((int[]) pixels);
+            }
+
+            @Override
+            public int getSize() {
+                return frames;
+            }
+        };
+    }
+
+    /**
+     * Write a buffer at the end of the file
+     */
+    final void append(ByteBuffer buffer) throws IOException {
+        long end = channel.position() + buffer.remaining();
+        if (end > MAX_FILE_SIZE) {
+            throw new IOException(file.getName() + " would exceed 4 GB; process the stack in parts");
+        }
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    /**
+     * Overwrite a little-endian int at an absolute file position
+     */
+    final void patchInt(long position, long value) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(0, (int) value);
+        while (b.hasRemaining()) channel.write(b, position + b.position());
+    }
+
+    private byte[] encodeNow(int[] rgb) {
+        try {
+            return encode(rgb);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                Future<byte[]> next = queue.take();
+                if (next == END) return;
+                if (failure != null) continue;  // keep draining so add() never blocks
+                writeFrame(next.get());
+            }
+        } catch (ExecutionException e) {
+            failure = e.getCause();
+            drainAfterFailure();
+        } catch (Throwable e) {
+            failure = e;
+            drainAfterFailure();
+        }
+    }
+
+    private void drainAfterFailure() {
+        try {
+            while (queue.take() != END) {
+                // discard
+            }
+        } catch (InterruptedException e) {
+            // daemon thread; exit
+        }
+    }
+
+    private void checkFailure() {
+        Throwable t = failure;
+        if (t == null) return;
+        if (t instanceof IOException) {
+            throw new UncheckedIOException("Writing " + file.getName() + " failed: " + t.getMessage(),
+                                           (IOException) t);
+        }
+        throw IMDExecutor.propagate(t);
+    }
+
+    /**
+     * Frames per second for the output (source frame rate, or ImageJ's animation rate)
+     */
+    static double frameRate(ImagePlus source) {
+        double fps = source.getCalibration().fps;
+        return fps > 0 ? fps : Math.max(1, Animator.getFrameRate());
+    }
+}
@@ -0,0 +1,133 @@
+package com.fret.imd;
+
+/**
+ * Trailing temporal window over the ratio (and optionally the mask-source
+ * intensity) of consecutive frames.
+ *
+ * The last window values of every pixel are kept in a ring buffer, so a new
+ * frame replaces only the oldest one: the running mean updates a per-pixel
+ * sum, and the running median moves the replaced value within a per-pixel
+ * sorted copy of the window. Frame n is smoothed over frames n-window+1..n
+ * (fewer at the start of the stack); the whole stack is never held.
+ *
+ * Frames must be added in order. next() starts a frame; the pixels of that
+ * frame may then be smoothed from several threads, each with its own range.
+ */
+final class IMDTemporalFilter {
+
+    // Filter constants (order matches IMDParameters.TEMPORAL_FILTERS)
+    static final int MEAN = 0;
+    static final int MEDIAN = 1;
+
+    private final int method;
+    private final int window;
+    private final int size;
+    private final Channel ratio;
+    private final Channel mask;     // null = mask passed through
+
+    private int frames;
+    private int slot = -1;
+
+    IMDTemporalFilter(int method, int window, int size, boolean smoothMask) {
+        if ((long) window * size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Temporal window of " + window + " frames is too large for "
+                                               + size + " pixels per frame.");
+        }
+        this.method = method;
+        this.window = window;
+        this.size = size;
+        this.ratio = new Channel();
+        this.mask = smoothMask ? new Channel() : null;
+    }
+
+    /**
+     * Frames added so far
+     */
+    int frames() {
+        return frames;
+    }
+
+    int window() {
+        return window;
+    }
+
+    /**
+     * Heap held by the window state
+     */
+    long bytes() {
+        long perChannel = 4L * window * size * (method == MEDIAN ? 2 : 1) + (method == MEAN ? 8L * size : 0);
+        return perChannel * (mask != null ? 2 : 1);
+    }
+
+    /**
+     * Start the next frame: its values replace the oldest values of the window
+     */
+    void next() {
+        frames++;
+        slot = (slot + 1) % window;
+    }
+
+    /**
+     * Add pixels [from, from + n) of the current frame, given in ratio[0..n)
+     * and maskValue[0..n), and replace them with the smoothed values
+     */
+    void smooth(int from, float[] ratioValues, float[] maskValues, int n) {
+        int count = Math.min(frames, window);
+        boolean full = frames > window;
+        ratio.smooth(from, ratioValues, n, count, full);
+        if (mask != null) mask.smooth(from, maskValues, n, count, full);
+    }
+
+    /**
+     * Ring buffer and running state of one smoothed quantity
+     */
+    private final class Channel {
+        // Window values of pixel p at [p * window, (p + 1) * window)
+        private final float[] ring = new float[window * size];
+        private final double[] sum = method == MEAN ? new double[size] : null;
+        private final float[] sorted = method == MEDIAN ? new float[window * size] : null;
+
+        void smooth(int from, float[] values, int n, int count, boolean full) {
+            for (int k = 0; k < n; k++) {
+                int base = (from + k) * window;
+                float in = values[k];
+                float out = ring[base + slot];
+                ring[base + slot] = in;
+                values[k] = method == MEAN ? mean(from + k, base, in, out, count, full)
+                                           : median(base, in, out, count, full);
+            }
+        }
+
+        private float mean(int p, int base, float in, float out, int count, boolean full) {
+            double s = sum[p] + in;
+            if (full) s -= out;
+            // Infinite values poison a running sum; recount while any is involved
+            if (Double.isNaN(s) || Double.isInfinite(s)) {
+                s = 0;
+                for (int j = 0; j < count; j++) s += ring[base + j];
+            }
+            sum[p] = s;
+            return (float) (s / count);
+        }
+
+        private float median(int base, float in, float out, int count, boolean full) {
+            // Position of the value leaving the window, or a new last slot while filling
+            int j = count - 1;
+            if (full) {
+                j = 0;
+                while (Float.compare(sorted[base + j], out) != 0) j++;
+            }
+            while (j > 0 && Float.compare(sorted[base + j - 1], in) > 0) {
+                sorted[base + j] = sorted[base + j - 1];
+                j--;
+            }
+            while (j < count - 1 && Float.compare(sorted[base + j + 1], in) < 0) {
+                sorted[base + j] = sorted[base + j + 1];
+                j++;
+            }
+            sorted[base + j] = in;
+            int mid = base + count / 2;
+            return (count & 1) != 0 ? sorted[mid] : (sorted[mid - 1] + sorted[mid]) / 2.0f;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.fret.imd;
+
+import ij.*;
+import ij.process.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Lazy RGB output stack.
+ *
+ * getProcessor(n) renders frame n on demand from the source channels.
+ * Rendered frames are kept in a size-bounded LRU cache, and the neighbours
+ * of the frame being viewed are rendered ahead on the shared pool so that
+ * scrolling stays smooth without materialising the whole output.
+ */
+final class IMDVirtualStack extends VirtualStack {
+
+    // Frames rendered in the background around the one being viewed
+    private static final int PREFETCH_AHEAD = 2;
+    private static final int PREFETCH_BEHIND = 1;
+
+    private final IMDEngine imd;
+    private final ChannelView fretView, cfpView;
+    private final int nSlices;
+    private final float fRmin, fRrange, fDmin, fDrange;
+    private final ForkJoinPool pool;
+    private final int maxFrames;
+
+    // Access-ordered: iteration starts at the least recently used frame
+    private final LinkedHashMap<Integer, int[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Integer, Future<int[]>> pending = new HashMap<>();
+
+    IMDVirtualStack(IMDEngine imd, ChannelView fretView, ChannelView cfpView,
+                    int nSlices, long cacheBytes, ForkJoinPool pool,
+                    float fRmin, float fRrange, float fDmin, float fDrange) {
+        super(imd.outputWidth(fretView), imd.outputHeight(fretView));
+        this.imd = imd;
+        this.fretView = fretView;
+        this.cfpView = cfpView;
+        this.nSlices = nSlices;
+        this.pool = pool;
+        this.fRmin = fRmin;
+        this.fRrange = fRrange;
+        this.fDmin = fDmin;
+        this.fDrange = fDrange;
+        long frameBytes = 4L * getWidth() * getHeight();
+        this.maxFrames = (int) Math.max(1, Math.min(Integer.MAX_VALUE, cacheBytes / frameBytes));
+    }
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        int[] pixels = frame(n);
+        prefetch(n);
+        // Hand out a copy so that edits to the displayed frame never corrupt the cache
+        return new ColorProcessor(getWidth(), getHeight(), pixels.clone());
+    }
+
+    @Override
+    public Object getPixels(int n) {
+        return getProcessor(n).getPixels();
+    }
+
+    @Override
+    public void setPixels(Object pixels, int n) {
+        // Frames are derived from the sources; edits are not stored
+    }
+
+    @Override
+    public int getSize() {
+        return nSlices;
+    }
+
+    @Override
+    public int size() {
+        return nSlices;
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        return fretView.getSliceLabel(n);
+    }
+
+    @Override
+    public int getBitDepth() {
+        return 24;
+    }
+
+    @Override
+    public void deleteSlice(int n) {
+        // Frames map one to one onto the source slices, so none can be removed
+        IJ.error("IMD", "Slices cannot be deleted from the IMD virtual output.\n"
+                        + "Use Image > Duplicate to get an editable copy.");
+    }
+
+    /**
+     * Cached frame, the result of a pending prefetch, or a newly rendered frame
+     */
+    private int[] frame(int n) {
+        Future<int[]> inFlight;
+        synchronized (this) {
+            int[] cached = cache.get(n);
+            if (cached != null) return cached;
+            inFlight = pending.get(n);
+        }
+        if (inFlight != null) {
+            try {
+                return inFlight.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | CancellationException e) {
+                // render it here instead
+            }
+        }
+        int[] pixels = imd.renderFrame(fretView, cfpView, n, pool, fRmin, fRrange, fDmin, fDrange);
+        store(n, pixels);
+        return pixels;
+    }
+
+    /**
+     * Render the neighbours of frame n in the background
+     */
+    private void prefetch(int n) {
+        if (pool == null || maxFrames < 2) return;
+        for (int k = n - PREFETCH_BEHIND; k <= n + PREFETCH_AHEAD; k++) {
+            if (k < 1 || k > nSlices || k == n) continue;
+            final int frame = k;
+            synchronized (this) {
+                if (cache.containsKey(frame) || pending.containsKey(frame)) continue;
+                pending.put(frame, pool.submit(() -> {
+                    try {
+                        int[] pixels = imd.renderFrame(fretView, cfpView, frame, null,
+                                                       fRmin, fRrange, fDmin, fDrange);
+                        store(frame, pixels);
+                        return pixels;
+                    } finally {
+                        synchronized (IMDVirtualStack.this) {
+                            pending.remove(frame);
+                        }
+                    }
+                }));
+            }
+        }
+    }
+
+    /**
+     * Add a frame and evict least recently used frames beyond the budget
+     */
+    private synchronized void store(int n, int[] pixels) {
+        cache.put(n, pixels);
+        Iterator<Integer> it = cache.keySet().iterator();
+        while (cache.size() > maxFrames && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+}
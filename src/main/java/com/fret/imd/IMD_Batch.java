@@ -0,0 +1,478 @@
+package com.fret.imd;
+
+import ij.*;
+import ij.gui.*;
+import ij.io.FileSaver;
+import ij.plugin.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * IMD Batch Plugin
+ *
+ * Processes every FRET/CFP pair of an input folder with the saved IMD
+ * parameters (IMD_parameters.txt) and writes one RGB TIFF per pair.
+ *
+ * Pairs are found by a filename rule (the CFP file name is the FRET file
+ * name with one token replaced, e.g. "_FRET" -> "_CFP"), or each file is a
+ * hyperstack whose acceptor/donor channels are given. The work runs as a
+ * three-stage pipeline: reader threads open upcoming files while the
+ * shared worker pool computes the current one and a writer thread saves
+ * finished results. Completed files are appended to a manifest in the
+ * output folder, so an interrupted batch resumes where it stopped.
+ */
+public class IMD_Batch implements PlugIn {
+
+    static final String MANIFEST = "IMD_batch_manifest.txt";
+
+    // Files opened ahead of the compute stage, and results waiting to be saved,
+    // when the memory budget holds that many items (see pipelineShape)
+    private static final int READER_THREADS = 2;
+    private static final int QUEUE_CAPACITY = 2;
+
+    // Dialog settings (static to persist between runs)
+    private static String inputDir = "";
+    private static String outputDir = "";
+    private static boolean hyperstacks = false;
+    private static String fretToken = "_FRET";
+    private static String cfpToken = "_CFP";
+    private static int acceptorChannel = 1;
+    private static int donorChannel = 2;
+    private static boolean subtractBG = false;
+    private static boolean resume = true;
+
+    @Override
+    public void run(String arg) {
+        if (!showDialog()) return;
+
+        File in = new File(inputDir);
+        File out = new File(outputDir);
+        if (!in.isDirectory()) {
+            IJ.error("IMD Batch", "Input folder not found:\n" + inputDir);
+            return;
+        }
+        if (!out.isDirectory() && !out.mkdirs()) {
+            IJ.error("IMD Batch", "Cannot create output folder:\n" + outputDir);
+            return;
+        }
+
+        List<Job> jobs = findJobs(in);
+        if (jobs.isEmpty()) {
+            IJ.error("IMD Batch", hyperstacks ? "No TIFF files found in the input folder."
+                                              : "No FRET/CFP pairs matching '" + fretToken + "' / '"
+                                                + cfpToken + "' found in the input folder.");
+            return;
+        }
+
+        // Skip files recorded as done by an earlier, interrupted run
+        File manifest = new File(out, MANIFEST);
+        Set<String> done = resume ? readManifest(manifest) : Collections.<String>emptySet();
+        List<Job> pending = new ArrayList<>();
+        for (Job job : jobs) {
+            if (!done.contains(job.key) || !new File(out, job.outputName).exists()) pending.add(job);
+        }
+
+        // Saved settings, with every frame of each item rendered into memory
+        IMDEngine imd = new IMDEngine(IMDParameters.load().toBuilder()
+                .subtractBackground(subtractBG)
+                .testMode(false)
+                .virtualOutput(false)
+                .streamOutput(IMDStreamWriter.NONE)
+                .watchMode(false)
+                .build());
+
+        IJ.log("\n=== IMD Batch Started ===");
+        IJ.log("Input: " + in + " (" + jobs.size() + " item(s), " + (jobs.size() - pending.size())
+               + " already done)");
+        IJ.log("Output: " + out);
+
+        PrintWriter manifestWriter;
+        try {
+            manifestWriter = new PrintWriter(new FileWriter(manifest, true));
+        } catch (IOException e) {
+            IJ.error("IMD Batch", "Cannot write " + manifest + ":\n" + e.getMessage());
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        int[] counts;
+        try {
+            counts = runPipeline(imd, pending, out, manifestWriter);
+        } finally {
+            manifestWriter.close();
+        }
+        long elapsed = System.currentTimeMillis() - startTime;
+
+        IJ.log("=== IMD Batch " + (counts[2] > 0 ? "Cancelled" : "Complete") + " ===");
+        IJ.log("Processed: " + counts[0] + ", failed: " + counts[1]
+               + ", remaining: " + (pending.size() - counts[0] - counts[1]));
+        IJ.log("Processing time: " + elapsed + " ms");
+        IJ.showProgress(1.0);
+        IJ.showStatus("IMD batch " + (counts[2] > 0 ? "cancelled" : "complete"));
+    }
+
+    private boolean showDialog() {
+        GenericDialog gd = new GenericDialog("IMD - Batch");
+        gd.addDirectoryField("Input folder:", inputDir, 30);
+        gd.addDirectoryField("Output folder:", outputDir, 30);
+        gd.addMessage("Pairs: the CFP file name is the FRET file name with the token replaced");
+        gd.addStringField("FRET token:", fretToken, 12);
+        gd.addStringField("CFP token:", cfpToken, 12);
+        gd.addCheckbox("Multi-channel stacks instead of pairs", hyperstacks);
+        gd.addNumericField("Acceptor (FRET) channel:", acceptorChannel, 0);
+        gd.addNumericField("Donor (CFP) channel:", donorChannel, 0);
+        gd.addCheckbox("Subtract background", subtractBG);
+        gd.addCheckbox("Resume (skip files in " + MANIFEST + ")", resume);
+        gd.addMessage("Ratio, intensity, LUT and background settings are taken from\n"
+                      + "IMD_parameters.txt (saved by the Intensity Modulated Display dialog).");
+        gd.showDialog();
+        if (gd.wasCanceled()) return false;
+
+        inputDir = gd.getNextString().trim();
+        outputDir = gd.getNextString().trim();
+        fretToken = gd.getNextString();
+        cfpToken = gd.getNextString();
+        hyperstacks = gd.getNextBoolean();
+        acceptorChannel = (int) gd.getNextNumber();
+        donorChannel = (int) gd.getNextNumber();
+        subtractBG = gd.getNextBoolean();
+        resume = gd.getNextBoolean();
+
+        if (!hyperstacks && (fretToken.isEmpty() || fretToken.equals(cfpToken))) {
+            IJ.error("IMD Batch", "FRET and CFP tokens must be different and not empty.");
+            return false;
+        }
+        if (hyperstacks && acceptorChannel == donorChannel) {
+            IJ.error("IMD Batch", "Acceptor and Donor channels must be different.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * FRET/CFP pairs (or hyperstacks) of the input folder in name order
+     */
+    private List<Job> findJobs(File dir) {
+        String[] names = dir.list();
+        List<Job> jobs = new ArrayList<>();
+        if (names == null) return jobs;
+        Arrays.sort(names);
+        for (String name : names) {
+            String lower = name.toLowerCase();
+            if (name.startsWith(".") || !(lower.endsWith(".tif") || lower.endsWith(".tiff"))) continue;
+            String base = name.substring(0, name.lastIndexOf('.'));
+            if (hyperstacks) {
+                jobs.add(new Job(name, new File(dir, name), null, base + "_IMD.tif"));
+                continue;
+            }
+            int at = name.indexOf(fretToken);
+            if (at < 0) continue;
+            String cfpName = name.substring(0, at) + cfpToken + name.substring(at + fretToken.length());
+            File cfp = new File(dir, cfpName);
+            if (!cfp.isFile()) {
+                IJ.log("IMD Batch: no CFP file for " + name + " (expected " + cfpName + "), skipped");
+                continue;
+            }
+            jobs.add(new Job(name, new File(dir, name), cfp, base + "_IMD.tif"));
+        }
+        return jobs;
+    }
+
+    /**
+     * Run the reader / compute / writer pipeline over the jobs.
+     * Returns {processed, failed, cancelled (0/1)}.
+     */
+    private int[] runPipeline(IMDEngine imd, List<Job> jobs, File out,
+                              PrintWriter manifest) {
+        int[] shape = pipelineShape(jobs, imd.resolveMemoryBudget());
+        int readerThreads = shape[0];
+        final BlockingQueue<Loaded> loadedQueue = new ArrayBlockingQueue<>(shape[1]);
+        final BlockingQueue<Loaded> resultQueue = new ArrayBlockingQueue<>(shape[1]);
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger readersLeft = new AtomicInteger(readerThreads);
+        final AtomicInteger processed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicBoolean stop = new AtomicBoolean();
+
+        // Stage 1: readers open upcoming items while the current one is computed
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < readerThreads; r++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    int i;
+                    while (!stop.get() && (i = next.getAndIncrement()) < jobs.size()) {
+                        loadedQueue.put(open(jobs.get(i)));
+                    }
+                } catch (InterruptedException e) {
+                    // stopped by the compute stage, which no longer waits for END
+                } catch (Throwable t) {
+                    IJ.log("IMD Batch: reader failed (" + t + ")");
+                } finally {
+                    // The last reader to leave always releases the compute stage
+                    if (readersLeft.decrementAndGet() == 0 && !stop.get()) {
+                        try {
+                            loadedQueue.put(Loaded.END);
+                        } catch (InterruptedException e) {
+                            // stopped meanwhile
+                        }
+                    }
+                }
+            }, "IMD-batch-reader-" + (r + 1));
+            reader.setDaemon(true);
+            reader.start();
+            readers.add(reader);
+        }
+
+        // Stage 3: the writer saves results in completion order and records them
+        Thread writer = new Thread(() -> {
+            try {
+                while (true) {
+                    Loaded item = resultQueue.take();
+                    if (item == Loaded.END) break;
+                    File file = new File(out, item.job.outputName);
+                    boolean saved = false;
+                    try {
+                        saved = item.result.getStackSize() > 1
+                              ? new FileSaver(item.result).saveAsTiffStack(file.getPath())
+                              : new FileSaver(item.result).saveAsTiff(file.getPath());
+                    } catch (Throwable t) {
+                        IJ.log("IMD Batch: saving " + file.getName() + " failed (" + t + ")");
+                    } finally {
+                        item.result.close();
+                    }
+                    if (saved) {
+                        manifest.println(item.job.key);
+                        manifest.flush();
+                        processed.incrementAndGet();
+                        IJ.log("Saved: " + file.getName());
+                    } else {
+                        failed.incrementAndGet();
+                        IJ.log("IMD Batch: could not save " + file);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            } catch (Throwable t) {
+                IJ.log("IMD Batch: writer failed (" + t + ")");
+            } finally {
+                // Results still queued are dropped; handOff() sees the writer is gone
+                for (Loaded item; (item = resultQueue.poll()) != null; ) {
+                    if (item.result != null) item.result.close();
+                }
+            }
+        }, "IMD-batch-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        // Stage 2: compute on this thread; processIMD runs each item on the shared pool
+        boolean cancelled = false;
+        int taken = 0;
+        try {
+            while (!stop.get()) {
+                Loaded item = loadedQueue.take();
+                if (item == Loaded.END) break;
+                taken++;
+                IJ.showStatus("IMD batch: " + taken + "/" + jobs.size() + " " + item.job.key);
+                if (item.error != null) {
+                    failed.incrementAndGet();
+                    IJ.log("IMD Batch: " + item.job.key + " skipped (" + item.error + ")");
+                    continue;
+                }
+                ImagePlus result = null;
+                try {
+                    result = imd.process(item.fret, item.cfp);
+                } catch (RuntimeException | OutOfMemoryError e) {
+                    IJ.log("IMD Batch: " + item.job.key + " failed (" + e + ")");
+                } finally {
+                    item.close();
+                }
+                if (IJ.escapePressed()) {
+                    // Partial results are not saved, so the item is redone on resume
+                    cancelled = true;
+                    break;
+                }
+                if (result == null) {
+                    failed.incrementAndGet();
+                    continue;
+                }
+                result.setTitle(item.job.outputName);
+                if (!handOff(resultQueue, new Loaded(item.job, result), writer)) {
+                    failed.incrementAndGet();
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancelled = true;
+        } finally {
+            stop.set(true);
+            for (Thread reader : readers) reader.interrupt();
+
+            // Let queued results finish saving, also when the compute stage failed
+            try {
+                if (handOff(resultQueue, Loaded.END, writer)) writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Loaded item : loadedQueue) item.close();
+        return new int[] {processed.get(), failed.get(), cancelled ? 1 : 0};
+    }
+
+    /**
+     * Queue item for the writer, waiting for space while the writer is alive.
+     * False (with the item's result closed) when the writer has died.
+     */
+    private static boolean handOff(BlockingQueue<Loaded> queue, Loaded item, Thread writer)
+            throws InterruptedException {
+        while (writer.isAlive()) {
+            if (queue.offer(item, 100, TimeUnit.MILLISECONDS)) return true;
+        }
+        if (item.result != null) {
+            item.result.close();
+            IJ.log("IMD Batch: the writer has stopped, remaining results are not saved");
+        }
+        return false;
+    }
+
+    /**
+     * Reader threads and queue capacity that keep the items held by the
+     * pipeline within the memory budget. Besides the item being computed
+     * (bounded by processIMD's own chunking), each reader, queued item and
+     * the item being written holds up to a whole stack, estimated as twice
+     * the largest input (covers an RGB result of 8-bit sources). Large
+     * stacks get a single reader and one-item queues.
+     */
+    private static int[] pipelineShape(List<Job> jobs, long budget) {
+        long itemBytes = 1;
+        for (Job job : jobs) {
+            long bytes = job.fret.length() + (job.cfp != null ? job.cfp.length() : 0);
+            itemBytes = Math.max(itemBytes, 2 * bytes);
+        }
+        // Items beyond the one being computed: readers, both queues and the writer
+        long ahead = budget / itemBytes;
+        int readers = ahead >= 2 * QUEUE_CAPACITY + READER_THREADS + 1 ? READER_THREADS : 1;
+        int capacity = (int) Math.max(1, Math.min(QUEUE_CAPACITY, (ahead - readers - 1) / 2));
+        IJ.log("Pipeline: " + readers + " reader(s), queues of " + capacity + " (largest item ~"
+               + (itemBytes >> 20) + " MB, budget " + (budget >> 20) + " MB)");
+        return new int[] {readers, capacity};
+    }
+
+    /**
+     * Reader stage: open the image(s) of one job and build the channel views
+     */
+    private Loaded open(Job job) {
+        try {
+            ImagePlus fretImp = IJ.openImage(job.fret.getPath());
+            if (fretImp == null) return Loaded.failed(job, "cannot open " + job.fret.getName());
+            if (job.cfp == null) {
+                int channels = fretImp.getNChannels();
+                if (acceptorChannel < 1 || acceptorChannel > channels
+                        || donorChannel < 1 || donorChannel > channels) {
+                    fretImp.close();
+                    return Loaded.failed(job, "has " + channels + " channel(s)");
+                }
+                return new Loaded(job, fretImp, null,
+                                  ChannelView.ofChannel(fretImp, acceptorChannel),
+                                  ChannelView.ofChannel(fretImp, donorChannel));
+            }
+            ImagePlus cfpImp = IJ.openImage(job.cfp.getPath());
+            if (cfpImp == null) {
+                fretImp.close();
+                return Loaded.failed(job, "cannot open " + job.cfp.getName());
+            }
+            if (fretImp.getWidth() != cfpImp.getWidth() || fretImp.getHeight() != cfpImp.getHeight()
+                    || fretImp.getStackSize() != cfpImp.getStackSize()) {
+                fretImp.close();
+                cfpImp.close();
+                return Loaded.failed(job, "FRET and CFP differ in size");
+            }
+            return new Loaded(job, fretImp, cfpImp, ChannelView.of(fretImp), ChannelView.of(cfpImp));
+        } catch (Throwable t) {
+            // Including OutOfMemoryError: the item fails, the pipeline goes on
+            return Loaded.failed(job, t.toString());
+        }
+    }
+
+    /**
+     * Keys of the jobs completed by earlier runs
+     */
+    static Set<String> readManifest(File manifest) {
+        Set<String> done = new HashSet<>();
+        if (!manifest.isFile()) return done;
+        try (BufferedReader reader = new BufferedReader(new FileReader(manifest))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) done.add(line);
+            }
+        } catch (IOException e) {
+            IJ.log("IMD Batch: cannot read " + manifest + ", processing all files");
+        }
+        return done;
+    }
+
+    /**
+     * One FRET/CFP pair (cfp == null for a hyperstack)
+     */
+    private static final class Job {
+        final String key;
+        final File fret, cfp;
+        final String outputName;
+
+        Job(String key, File fret, File cfp, String outputName) {
+            this.key = key;
+            this.fret = fret;
+            this.cfp = cfp;
+            this.outputName = outputName;
+        }
+    }
+
+    /**
+     * A job moving through the pipeline: its opened sources, or its result
+     */
+    private static final class Loaded {
+        static final Loaded END = new Loaded(null, (String) null);
+
+        final Job job;
+        final ImagePlus fretImp, cfpImp, result;
+        final ChannelView fret, cfp;
+        final String error;
+
+        Loaded(Job job, ImagePlus fretImp, ImagePlus cfpImp, ChannelView fret, ChannelView cfp) {
+            this.job = job;
+            this.fretImp = fretImp;
+            this.cfpImp = cfpImp;
+            this.fret = fret;
+            this.cfp = cfp;
+            this.result = null;
+            this.error = null;
+        }
+
+        Loaded(Job job, ImagePlus result) {
+            this.job = job;
+            this.result = result;
+            this.fretImp = this.cfpImp = null;
+            this.fret = this.cfp = null;
+            this.error = null;
+        }
+
+        private Loaded(Job job, String error) {
+            this.job = job;
+            this.error = error;
+            this.fretImp = this.cfpImp = this.result = null;
+            this.fret = this.cfp = null;
+        }
+
+        static Loaded failed(Job job, String error) {
+            return new Loaded(job, error);
+        }
+
+        void close() {
+            if (fretImp != null) fretImp.close();
+            if (cfpImp != null) cfpImp.close();
+        }
+    }
+}
@@ -4,10 +4,8 @@ import ij.*;
 import ij.gui.*;
 import ij.plugin.*;
 import ij.process.*;
-import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Intensity Modulated Display (IMD) Plugin
@@ -17,9 +15,8 @@ import java.util.concurrent.atomic.AtomicInteger;
  * New in v2.0:
  * - Single multi-channel stack input mode: select acceptor/donor channels
  *   from one hyperstack instead of two separate images
- * - Background subtraction via the "Subtract Background Plus" plugin
- *   (Sliding paraboloid / Rolling ball / Morphological opening), applied
- *   to all slices of a stack
+ * - Built-in background subtraction (Sliding paraboloid / Rolling ball /
+ *   Morphological opening), applied per slice to all slices of a stack
  * 
  * Bug fixes in v1.1:
  * - Ratio calculation now uses 32-bit float (was integer division)
@@ -32,45 +29,20 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class Intensity_Modulated_Display implements PlugIn {
     
-    // Parameters (static to persist between runs)
-    private static double rmax = 3.0;
-    private static double rmin = -1.0;
-    private static double dmax = 6000.0;
-    private static double dmin = 0.0;
-    private static double rollingBallRadius = 50.0;
-    private static double bgSmoothing = 2.0;          // New: Subtract Background Plus pre-smoothing sigma
-    private static String bgMethod = "Sliding paraboloid (separable, fast)";  // New: BG method
-    private static String lutChoice = "physics";
-    private static boolean testMode = false;
-    private static boolean subtractBG = false;
+    // Settings of the last run (static to persist between runs)
+    private static IMDParameters parameters = IMDParameters.builder().build();
     private static boolean saveParams = true;
-    private static boolean useMultiThread = true;
-    private static String maskSource = "CFP (Donor)";  // New: mask source selection
 
     // Input mode (New: support a single multi-channel stack)
     private static boolean isMultiChannel = false;
-    private static int acceptorChannel = 1;
-    private static int donorChannel = 2;
 
-    // Mask source options
-    private static final String[] MASK_SOURCES = {"CFP (Donor)", "FRET", "Average (CFP+FRET)/2"};
-
-    // Background subtraction methods (labels must match Subtract Background Plus exactly)
-    private static final String[] BG_METHODS = {
-        "Sliding paraboloid (separable, fast)",
-        "Rolling ball (full resolution)",
-        "Morphological opening (flat disk)"
-    };
+    // Poll interval for new frames in watch mode
+    private static final long WATCH_INTERVAL_MS = 500;
 
     private int fretIndex = 0;
     private int cfpIndex = 1;
     private int multiIndex = 0;
     
-    // LUT cache
-    private byte[] lutReds = new byte[256];
-    private byte[] lutGreens = new byte[256];
-    private byte[] lutBlues = new byte[256];
-    
     @Override
     public void run(String arg) {
         // Select input mode first (New)
@@ -95,71 +67,81 @@ public class Intensity_Modulated_Display implements PlugIn {
         }
 
         // Load saved parameters
-        loadParameters();
+        parameters = parameters.loadOnto();
 
         // Show dialog
-        if (!showDialog(imageTitles)) return;
+        IMDParameters params = showDialog(imageTitles, parameters);
+        if (params == null) return;
+        parameters = params;
 
         // Get selected images (New: branch by input mode)
-        ImagePlus fretImp, cfpImp;
-        boolean extractedChannels = false;
-
-        if (isMultiChannel) {
-            ImagePlus multiImp = WindowManager.getImage(imageIDs[multiIndex]);
-            int channels = multiImp.getNChannels();
-            if (channels < 2) {
-                IJ.error("IMD Error", "Selected image has only " + channels + " channel(s). Need at least 2.");
-                return;
-            }
-            if (acceptorChannel < 1 || acceptorChannel > channels || donorChannel < 1 || donorChannel > channels) {
-                IJ.error("IMD Error", "Channel numbers must be between 1 and " + channels + ".");
-                return;
-            }
-            if (acceptorChannel == donorChannel) {
-                IJ.error("IMD Error", "Acceptor and Donor channels must be different.");
-                return;
+        // Channels are read in place through views (no Duplicator copies)
+        ChannelView[] views;
+        try {
+            if (isMultiChannel) {
+                views = IMDEngine.views(WindowManager.getImage(imageIDs[multiIndex]),
+                                        params.getAcceptorChannel(), params.getDonorChannel());
+            } else {
+                views = IMDEngine.views(WindowManager.getImage(imageIDs[fretIndex]),
+                                        WindowManager.getImage(imageIDs[cfpIndex]));
             }
-            fretImp = extractChannel(multiImp, acceptorChannel);
-            cfpImp = extractChannel(multiImp, donorChannel);
-            extractedChannels = true;
-        } else {
-            fretImp = WindowManager.getImage(imageIDs[fretIndex]);
-            cfpImp = WindowManager.getImage(imageIDs[cfpIndex]);
+        } catch (IllegalArgumentException e) {
+            IJ.error("IMD Error", e.getMessage());
+            return;
+        }
+        ChannelView fretView = views[0], cfpView = views[1];
 
-            // Validation
-            if (fretImp == cfpImp) {
-                IJ.error("IMD Error", "Please select different images for FRET and CFP.");
+        // Derive the limits from the data, then optionally fine-tune them in the preview
+        if (params.isAutoRange()) {
+            try {
+                IMDParameters ranged = new IMDEngine(params).autoRange(fretView, cfpView);
+                if (ranged == null) {
+                    IJ.log("IMD auto-range cancelled");
+                    return;
+                }
+                parameters = params = ranged;
+            } catch (RuntimeException e) {
+                IJ.log("IMD failed: " + e);
+                IJ.error("IMD Error", "Auto-range failed:\n" + e);
                 return;
             }
         }
-
-        if (fretImp.getStackSize() != cfpImp.getStackSize()) {
-            IJ.error("IMD Error", "FRET and CFP must have the same number of slices.");
-            if (extractedChannels) { fretImp.close(); cfpImp.close(); }
-            return;
+        
+        // Tune the display ranges interactively (New)
+        if (params.isLivePreview()) {
+            params = showLivePreview(fretView, cfpView, params);
+            if (params == null) return;
+            parameters = params;
         }
 
         // Save parameters
-        if (saveParams) saveParameters();
+        if (saveParams) params.save();
 
         // Process
+        IMDEngine engine = new IMDEngine(params);
         long startTime = System.currentTimeMillis();
-        ImagePlus result = processIMD(fretImp, cfpImp);
-        long elapsed = System.currentTimeMillis() - startTime;
-
-        // Clean up extracted channel images (New)
-        if (extractedChannels) {
-            fretImp.close();
-            cfpImp.close();
+        ImagePlus result;
+        try {
+            result = engine.process(fretView, cfpView);
+        } catch (RuntimeException e) {
+            IJ.log("IMD failed: " + e);
+            IJ.error("IMD Error", "Processing failed:\n" + e);
+            return;
         }
+        long elapsed = System.currentTimeMillis() - startTime;
 
         if (result != null) {
             result.show();
             IJ.log("=== IMD Complete ===");
             IJ.log("Processing time: " + elapsed + " ms");
             IJ.log("Output: " + result.getTitle());
-            if (testMode && fretImp.getStackSize() > 1) {
+            if (params.isTestMode() && fretView.getSize() > 1) {
                 IJ.log("*** TEST MODE: Only first frame processed ***");
+            } else if (params.isWatchMode() && engine.streaming()) {
+                IJ.log("Watch mode is not available with streamed output");
+            } else if (params.isWatchMode() && !params.isVirtualOutput() && !IJ.escapePressed()) {
+                IJ.log("Watching for new frames (close the output window or press Esc to stop)");
+                new FrameWatcher(engine, fretView, cfpView, result).start();
             }
         }
     }
@@ -177,514 +159,279 @@ public class Intensity_Modulated_Display implements PlugIn {
         isMultiChannel = gd.getNextChoice().equals("Single multi-channel stack");
         return true;
     }
-
-    /**
-     * Extract a single channel (all Z and T) from a multi-channel image. (New)
-     */
-    private ImagePlus extractChannel(ImagePlus imp, int channel) {
-        int nSlices = imp.getNSlices();
-        int nFrames = imp.getNFrames();
-        return new Duplicator().run(imp, channel, channel, 1, nSlices, 1, nFrames);
-    }
     
     /**
-     * Show parameter dialog
+     * Show parameter dialog; returns the chosen settings, or null if cancelled
      */
-    private boolean showDialog(String[] imageTitles) {
+    private IMDParameters showDialog(String[] imageTitles, IMDParameters p) {
         // Get available LUTs
-        String[] lutOptions = getAvailableLUTs();
-        
-        // Find default LUT index
-        int lutIndex = 0;
-        for (int i = 0; i < lutOptions.length; i++) {
-            if (lutOptions[i].equals(lutChoice)) {
-                lutIndex = i;
-                break;
-            }
-        }
-        
-        // Find mask source index
-        int maskIndex = 0;
-        for (int i = 0; i < MASK_SOURCES.length; i++) {
-            if (MASK_SOURCES[i].equals(maskSource)) {
-                maskIndex = i;
-                break;
-            }
-        }
-
-        // Find BG method index (New)
-        int bgMethodIndex = 0;
-        for (int i = 0; i < BG_METHODS.length; i++) {
-            if (BG_METHODS[i].equals(bgMethod)) {
-                bgMethodIndex = i;
-                break;
-            }
-        }
+        String[] lutOptions = IMDLuts.names();
+        String lut = Arrays.asList(lutOptions).contains(p.getLut()) ? p.getLut() : lutOptions[0];
+        String mask = Arrays.asList(IMDParameters.MASK_SOURCES).contains(p.getMaskSource())
+                    ? p.getMaskSource() : IMDParameters.MASK_SOURCES[0];
+        String bgMethod = IMDParameters.BG_METHODS[IMDParameters.bgMethodIndex(p.getBgMethod())];
+        // Recorded macros may still name the rolling ball by its earlier label
+        String options = Macro.getOptions();
+        if (options != null) Macro.setOptions(IMDParameters.aliasLegacyOptions(options));
+        String temporalFilter = IMDParameters.TEMPORAL_FILTERS[IMDParameters.temporalFilterIndex(p.getTemporalFilter())];
         
         GenericDialog gd = new GenericDialog("IMD - Intensity Modulated Display v2.0.1");
         
         gd.addMessage("=== Image Selection ===");
         if (isMultiChannel) {
             gd.addChoice("Multi-channel image:", imageTitles, imageTitles[0]);
-            gd.addNumericField("Acceptor (FRET) channel:", acceptorChannel, 0);
-            gd.addNumericField("Donor (CFP) channel:", donorChannel, 0);
+            gd.addNumericField("Acceptor (FRET) channel:", p.getAcceptorChannel(), 0);
+            gd.addNumericField("Donor (CFP) channel:", p.getDonorChannel(), 0);
         } else {
             gd.addChoice("FRET image:", imageTitles, imageTitles[0]);
             gd.addChoice("CFP (Donor) image:", imageTitles, imageTitles[Math.min(1, imageTitles.length-1)]);
         }
         
         gd.addMessage("=== Ratio Range ===");
-        gd.addNumericField("Ratio max:", rmax, 2);
-        gd.addNumericField("Ratio min:", rmin, 2);
+        gd.addNumericField("Ratio max:", p.getRmax(), 2);
+        gd.addNumericField("Ratio min:", p.getRmin(), 2);
         
         gd.addMessage("=== Intensity Mask Settings ===");
-        gd.addNumericField("Intensity max:", dmax, 0);
-        gd.addNumericField("Intensity min:", dmin, 0);
-        gd.addChoice("Mask source:", MASK_SOURCES, MASK_SOURCES[maskIndex]);
+        gd.addNumericField("Intensity max:", p.getDmax(), 0);
+        gd.addNumericField("Intensity min:", p.getDmin(), 0);
+        gd.addChoice("Mask source:", IMDParameters.MASK_SOURCES, mask);
+        
+        gd.addMessage("=== Auto Range ===");
+        gd.addCheckbox("Auto-range ratio and intensity limits", p.isAutoRange());
+        gd.addNumericField("Ratio percentile low:", p.getAutoRatioLow(), 1);
+        gd.addNumericField("Ratio percentile high:", p.getAutoRatioHigh(), 1);
+        gd.addNumericField("Intensity percentile low:", p.getAutoMaskLow(), 1);
+        gd.addNumericField("Intensity percentile high:", p.getAutoMaskHigh(), 1);
+        gd.addNumericField("Sample every Nth pixel:", p.getAutoSampleStep(), 0);
         
         gd.addMessage("=== Display Options ===");
-        gd.addChoice("LUT:", lutOptions, lutOptions[lutIndex]);
+        gd.addChoice("LUT:", lutOptions, lut);
         
         gd.addMessage("=== Processing Options ===");
-        gd.addCheckbox("Test mode (first frame only)", testMode);
-        gd.addCheckbox("Subtract background (Subtract Background Plus)", subtractBG);
-        gd.addChoice("BG method:", BG_METHODS, BG_METHODS[bgMethodIndex]);
-        gd.addNumericField("BG radius (pixels):", rollingBallRadius, 0);
-        gd.addNumericField("BG smoothing sigma (px):", bgSmoothing, 1);
-        gd.addCheckbox("Multi-threaded processing", useMultiThread);
+        gd.addCheckbox("Test mode (first frame only)", p.isTestMode());
+        gd.addCheckbox("Live preview (current frame) before processing", p.isLivePreview());
+        gd.addCheckbox("Watch for new frames (live acquisition)", p.isWatchMode());
+        gd.addCheckbox("Virtual output (render frames on demand)", p.isVirtualOutput());
+        gd.addNumericField("Frame cache (MB):", p.getFrameCacheMB(), 0);
+        gd.addChoice("Stream output to disk:", IMDStreamWriter.FORMATS, p.getStreamOutput());
+        gd.addDirectoryField("Stream folder (empty=source folder):", p.getStreamDir());
+        gd.addChoice("Binning (fast overview):", IMDParameters.BINNINGS, IMDParameters.BINNINGS[p.getBinning() - 1]);
+        gd.addCheckbox("Restrict to ROI (crop to its bounds)", p.isRestrictToRoi());
+        gd.addCheckbox("Subtract background", p.isSubtractBackground());
+        gd.addChoice("BG method:", IMDParameters.BG_METHODS, bgMethod);
+        gd.addNumericField("BG radius (pixels):", p.getBgRadius(), 0);
+        gd.addNumericField("BG smoothing sigma (px):", p.getBgSmoothing(), 1);
+        gd.addNumericField("BG cache (MB, 0=off):", p.getBgCacheMB(), 0);
+        gd.addDirectoryField("BG cache spill folder:", p.getBgCacheDir());
+        gd.addNumericField("BG cache spill limit (MB):", p.getBgCacheDiskMB(), 0);
+        gd.addChoice("Temporal smoothing:", IMDParameters.TEMPORAL_FILTERS, temporalFilter);
+        gd.addNumericField("Temporal window (frames, 1=off):", p.getTemporalWindow(), 0);
+        gd.addCheckbox("Smooth mask intensity too", p.isTemporalMask());
+        gd.addCheckbox("Multi-threaded processing", p.isMultiThreaded());
+        gd.addCheckbox("Fast colour table (256x256, approximate)", p.isColorTable());
+        gd.addNumericField("Threads (0=all cores):", p.getThreads(), 0);
+        gd.addNumericField("Memory budget (MB, 0=auto):", p.getMemoryBudgetMB(), 0);
+        gd.addCheckbox("Export stage metrics (CSV/JSON)", p.isExportMetrics());
         gd.addCheckbox("Save parameters", saveParams);
         
         gd.showDialog();
         
-        if (gd.wasCanceled()) return false;
+        if (gd.wasCanceled()) return null;
         
         // Get values (branch by input mode)
+        IMDParameters.Builder b = p.toBuilder();
         if (isMultiChannel) {
             multiIndex = gd.getNextChoiceIndex();
-            acceptorChannel = (int) gd.getNextNumber();
-            donorChannel = (int) gd.getNextNumber();
+            int acceptor = (int) gd.getNextNumber();
+            b.channels(acceptor, (int) gd.getNextNumber());
         } else {
             fretIndex = gd.getNextChoiceIndex();
             cfpIndex = gd.getNextChoiceIndex();
         }
-        rmax = gd.getNextNumber();
-        rmin = gd.getNextNumber();
-        dmax = gd.getNextNumber();
-        dmin = gd.getNextNumber();
-        maskSource = gd.getNextChoice();
-        lutChoice = gd.getNextChoice();
-        testMode = gd.getNextBoolean();
-        subtractBG = gd.getNextBoolean();
-        bgMethod = gd.getNextChoice();
-        rollingBallRadius = gd.getNextNumber();
-        bgSmoothing = gd.getNextNumber();
-        useMultiThread = gd.getNextBoolean();
+        double rmax = gd.getNextNumber();
+        b.ratioRange(gd.getNextNumber(), rmax);
+        double dmax = gd.getNextNumber();
+        b.intensityRange(gd.getNextNumber(), dmax);
+        b.maskSource(gd.getNextChoice());
+        b.autoRange(gd.getNextBoolean());
+        b.autoPercentiles(gd.getNextNumber(), gd.getNextNumber(), gd.getNextNumber(), gd.getNextNumber());
+        b.autoSampleStep((int) gd.getNextNumber());
+        b.lut(gd.getNextChoice());
+        b.testMode(gd.getNextBoolean());
+        b.livePreview(gd.getNextBoolean());
+        b.watchMode(gd.getNextBoolean());
+        b.virtualOutput(gd.getNextBoolean());
+        b.frameCacheMB(gd.getNextNumber());
+        b.streamOutput(gd.getNextChoice());
+        b.streamDirectory(gd.getNextString());
+        b.binning(gd.getNextChoiceIndex() + 1);
+        b.restrictToRoi(gd.getNextBoolean());
+        b.subtractBackground(gd.getNextBoolean());
+        b.background(gd.getNextChoice(), gd.getNextNumber(), gd.getNextNumber());
+        b.bgCache(gd.getNextNumber(), gd.getNextString().trim(), gd.getNextNumber());
+        String filter = gd.getNextChoice();
+        int window = (int) gd.getNextNumber();
+        b.temporalSmoothing(filter, window, gd.getNextBoolean());
+        b.multiThreaded(gd.getNextBoolean());
+        b.colorTable(gd.getNextBoolean());
+        b.threads((int) gd.getNextNumber());
+        b.memoryBudgetMB(gd.getNextNumber());
+        b.exportMetrics(gd.getNextBoolean());
         saveParams = gd.getNextBoolean();
         
-        return true;
-    }
-    
-    /**
-     * Main IMD processing - optimized version with bug fixes
-     */
-    private ImagePlus processIMD(ImagePlus fretOrig, ImagePlus cfpOrig) {
-        IJ.log("\n=== IMD Processing Started ===");
-        IJ.log("FRET: " + fretOrig.getTitle() + ", CFP: " + cfpOrig.getTitle());
-        IJ.log("Ratio range: " + rmin + " to " + rmax);
-        IJ.log("Intensity range: " + dmin + " to " + dmax);
-        IJ.log("Mask source: " + maskSource);
-        IJ.log("LUT: " + lutChoice);
-        
-        int width = fretOrig.getWidth();
-        int height = fretOrig.getHeight();
-        int nSlices = fretOrig.getStackSize();
-        boolean isStack = nSlices > 1;
-        
-        // Duplicate for processing
-        ImagePlus fretImp, cfpImp;
-        if (testMode && isStack) {
-            IJ.log("*** TEST MODE: first frame only ***");
-            fretImp = new Duplicator().run(fretOrig, 1, 1, 1, 1, 1, 1);
-            cfpImp = new Duplicator().run(cfpOrig, 1, 1, 1, 1, 1, 1);
-            nSlices = 1;
-        } else {
-            fretImp = new Duplicator().run(fretOrig);
-            cfpImp = new Duplicator().run(cfpOrig);
-        }
-        
-        // Background subtraction (use IJ.run for native speed)
-        // Important: Do this BEFORE extracting pixel data for mask
-        // Uses the "Subtract Background Plus" plugin. The command name has NO "..."
-        // suffix. For stacks, the " stack" option must be appended so that
-        // IJ.setupDialog enables DOES_STACKS and every slice is processed
-        // (PARALLELIZE_STACKS alone only parallelizes; it does not enable stack mode).
-        if (subtractBG) {
-            IJ.log("Subtracting background: " + bgMethod
-                   + " (radius=" + rollingBallRadius + ", smoothing=" + bgSmoothing + ")...");
-            String stackOpt = nSlices > 1 ? " stack" : "";
-            String bgOptions = "method=[" + bgMethod + "] radius=" + rollingBallRadius
-                             + " smoothing=" + bgSmoothing + " background=0 shrink=1" + stackOpt;
-            IJ.run(fretImp, "Subtract Background Plus", bgOptions);
-            IJ.run(cfpImp, "Subtract Background Plus", bgOptions);
-        }
-        
-        // Load LUT colors
-        if (!loadLUTColors(lutChoice)) {
-            IJ.log("Warning: Could not load LUT '" + lutChoice + "', using Fire");
-            loadLUTColors("Fire");
-        }
-        
-        // Pre-calculate constants (using float for precision - bug fix)
-        final float fRmin = (float) rmin;
-        final float fRrange = (float) (rmax - rmin);
-        final float fDmin = (float) dmin;
-        final float fDrange = (float) (dmax - dmin);
-        
-        // Create output stack
-        ImageStack outputStack = new ImageStack(width, height);
-        
-        // Multi-threaded or single-threaded processing
-        if (useMultiThread && nSlices > 1) {
-            processMultiThreaded(fretImp, cfpImp, outputStack, width, height, nSlices,
-                                 fRmin, fRrange, fDmin, fDrange);
-        } else {
-            processSingleThreaded(fretImp, cfpImp, outputStack, width, height, nSlices,
-                                  fRmin, fRrange, fDmin, fDrange);
-        }
-        
-        // Create output image
-        String title = "IMD-Rmax" + rmax + "-Rmin" + rmin + 
-                      "-Dmax" + (int)dmax + "-Dmin" + (int)dmin + "-" + lutChoice;
-        ImagePlus output = new ImagePlus(title, outputStack);
-        output.setCalibration(fretOrig.getCalibration().copy());
-        
-        // Cleanup
-        fretImp.close();
-        cfpImp.close();
-        
-        IJ.showProgress(1.0);
-        IJ.showStatus("IMD complete");
-        
-        return output;
+        return b.build();
     }
     
     /**
-     * Single-threaded processing
+     * Watch mode: polls the sources for appended frames and renders only the
+     * new ones (background subtraction per new frame) into the live output.
+     * The ROI and the temporal window are kept between polls.
+     * Stops when the output or a source is closed, or on Escape.
      */
-    private void processSingleThreaded(ImagePlus fretImp, ImagePlus cfpImp, 
-                                       ImageStack outputStack, int width, int height, int nSlices,
-                                       float fRmin, float fRrange, float fDmin, float fDrange) {
-        for (int slice = 1; slice <= nSlices; slice++) {
-            if (nSlices > 1) {
-                IJ.showProgress(slice - 1, nSlices);
-                IJ.showStatus("IMD: slice " + slice + "/" + nSlices);
-            }
-            
-            fretImp.setSlice(slice);
-            cfpImp.setSlice(slice);
-            
-            // Get pixel data as float (important for accurate ratio calculation)
-            float[] fretPixels = getFloatPixels(fretImp.getProcessor());
-            float[] cfpPixels = getFloatPixels(cfpImp.getProcessor());
-            
-            int[] rgbPixels = processPixelArrays(fretPixels, cfpPixels,
-                                                 width * height, fRmin, fRrange, fDmin, fDrange);
-            
-            outputStack.addSlice(new ColorProcessor(width, height, rgbPixels));
-        }
-    }
-    
-    /**
-     * Multi-threaded processing for stacks
-     */
-    private void processMultiThreaded(ImagePlus fretImp, ImagePlus cfpImp,
-                                      ImageStack outputStack, int width, int height, int nSlices,
-                                      float fRmin, float fRrange, float fDmin, float fDrange) {
-        
-        // Pre-extract all slice data as float arrays (bug fix: ensures float precision)
-        final float[][] fretData = new float[nSlices][];
-        final float[][] cfpData = new float[nSlices][];
-        
-        for (int s = 0; s < nSlices; s++) {
-            fretImp.setSlice(s + 1);
-            cfpImp.setSlice(s + 1);
-            fretData[s] = getFloatPixels(fretImp.getProcessor());
-            cfpData[s] = getFloatPixels(cfpImp.getProcessor());
+    private static class FrameWatcher extends Thread {
+        private final IMDEngine engine;
+        private ChannelView fretView, cfpView;  // Rebuilt only when the sources change
+        private final ImagePlus output;
+        private final IMDRegion region;
+        private final IMDTemporalFilter temporal;
+        private int processed;
+        
+        FrameWatcher(IMDEngine engine, ChannelView fretView, ChannelView cfpView, ImagePlus output) {
+            super("IMD-watcher");
+            setDaemon(true);
+            this.engine = engine;
+            this.fretView = fretView;
+            this.cfpView = cfpView;
+            this.output = output;
+            this.processed = output.getStackSize();
+            this.region = engine.region(fretView, cfpView);
+            this.temporal = engine.temporalFilter(output.getWidth() * output.getHeight());
         }
         
-        // Prepare result array
-        final int[][] results = new int[nSlices][];
-        
-        int nThreads = Runtime.getRuntime().availableProcessors();
-        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
-        AtomicInteger progress = new AtomicInteger(0);
-        
-        IJ.log("Using " + nThreads + " threads");
-        
-        // Submit tasks
-        for (int s = 0; s < nSlices; s++) {
-            final int slice = s;
-            executor.submit(() -> {
-                results[slice] = processPixelArrays(fretData[slice], cfpData[slice],
-                                                    width * height, fRmin, fRrange, fDmin, fDrange);
-                int done = progress.incrementAndGet();
-                IJ.showProgress(done, nSlices);
-                IJ.showStatus("IMD: " + done + "/" + nSlices);
-            });
-        }
-        
-        // Wait for completion
-        executor.shutdown();
-        try {
-            executor.awaitTermination(1, TimeUnit.HOURS);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        }
-        
-        // Add results to stack
-        for (int s = 0; s < nSlices; s++) {
-            outputStack.addSlice(new ColorProcessor(width, height, results[s]));
-        }
-    }
-    
-    /**
-     * Core pixel processing - with bug fixes
-     * - Uses float division for accurate ratio
-     * - Supports multiple mask sources
-     */
-    private int[] processPixelArrays(float[] fretPixels, float[] cfpPixels, int size,
-                                     float fRmin, float fRrange, float fDmin, float fDrange) {
-        int[] rgbPixels = new int[size];
-        
-        // Local references for speed
-        final byte[] reds = this.lutReds;
-        final byte[] greens = this.lutGreens;
-        final byte[] blues = this.lutBlues;
-        
-        for (int i = 0; i < size; i++) {
-            float fretVal = fretPixels[i];
-            float cfpVal = cfpPixels[i];
-            
-            // Calculate ratio using FLOAT division (bug fix)
-            float ratio;
-            if (cfpVal != 0) {
-                ratio = fretVal / cfpVal;
-            } else {
-                ratio = 0;
-            }
-            
-            // Handle NaN
-            if (Float.isNaN(ratio)) {
-                ratio = 0;
-            }
-            
-            // Normalize ratio to 0-1
-            float normRatio = (ratio - fRmin) / fRrange;
-            if (normRatio < 0) normRatio = 0;
-            else if (normRatio > 1) normRatio = 1;
-            
-            // LUT index (0-255)
-            int idx = (int) (normRatio * 255);
-            if (idx > 255) idx = 255;
-            if (idx < 0) idx = 0;
-            
-            // Calculate mask from selected source (bug fix: use processed image)
-            float maskValue;
-            if (maskSource.equals("FRET")) {
-                maskValue = fretVal;
-            } else if (maskSource.equals("Average (CFP+FRET)/2")) {
-                maskValue = (cfpVal + fretVal) / 2.0f;
-            } else {
-                // Default: CFP (Donor)
-                maskValue = cfpVal;
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(WATCH_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (output.getWindow() == null || isClosed(fretView) || isClosed(cfpView)) break;
+                
+                fretView = fretView.refreshed();
+                cfpView = cfpView.refreshed();
+                int available = Math.min(fretView.getSize(), cfpView.getSize());
+                if (available <= processed) continue;
+                
+                long t0 = System.currentTimeMillis();
+                ImageStack added = new ImageStack(output.getWidth(), output.getHeight());
+                boolean completed;
+                try {
+                    completed = engine.processFrames(fretView, cfpView, processed + 1, available, added, region, temporal);
+                } catch (RuntimeException e) {
+                    IJ.log("IMD watch stopped: " + e);
+                    return;
+                }
+                
+                ImageStack stack = output.getStack();
+                for (int s = 1; s <= added.getSize(); s++) {
+                    stack.addSlice(fretView.getSliceLabel(processed + s), added.getProcessor(s));
+                }
+                output.setStack(stack);
+                output.setSlice(stack.getSize());
+                IJ.log("IMD watch: frame(s) " + (processed + 1) + "-" + (processed + added.getSize())
+                       + " in " + (System.currentTimeMillis() - t0) + " ms");
+                processed += added.getSize();
+                if (!completed) break;
             }
-            
-            float mask = (maskValue - fDmin) / fDrange;
-            if (mask < 0) mask = 0;
-            else if (mask > 1) mask = 1;
-            
-            // Apply LUT and mask
-            int r = (int) ((reds[idx] & 0xff) * mask);
-            int g = (int) ((greens[idx] & 0xff) * mask);
-            int b = (int) ((blues[idx] & 0xff) * mask);
-            
-            // Clamp values (shouldn't be necessary but for safety)
-            if (r > 255) r = 255;
-            if (g > 255) g = 255;
-            if (b > 255) b = 255;
-            
-            rgbPixels[i] = (r << 16) | (g << 8) | b;
+            IJ.log("IMD watch stopped after " + processed + " frame(s)");
         }
         
-        return rgbPixels;
-    }
-    
-    /**
-     * Get pixels as float array (handles 8, 16, 32-bit)
-     * This ensures accurate ratio calculation regardless of input bit depth
-     */
-    private float[] getFloatPixels(ImageProcessor ip) {
-        int size = ip.getWidth() * ip.getHeight();
-        float[] result = new float[size];
-        
-        if (ip instanceof FloatProcessor) {
-            float[] src = (float[]) ip.getPixels();
-            System.arraycopy(src, 0, result, 0, size);
-        } else if (ip instanceof ShortProcessor) {
-            short[] pixels = (short[]) ip.getPixels();
-            for (int i = 0; i < size; i++) {
-                result[i] = pixels[i] & 0xffff;
-            }
-        } else if (ip instanceof ByteProcessor) {
-            byte[] pixels = (byte[]) ip.getPixels();
-            for (int i = 0; i < size; i++) {
-                result[i] = pixels[i] & 0xff;
-            }
-        } else {
-            // Fallback for other types
-            for (int i = 0; i < size; i++) {
-                result[i] = ip.getf(i);
-            }
+        private boolean isClosed(ChannelView view) {
+            return WindowManager.getImage(view.getImage().getID()) == null;
         }
-        return result;
     }
     
     /**
-     * Load LUT colors into arrays
-     * Fixed: properly handles LUT loading and returns success status
+     * Live preview: ratio and mask planes of the current frame are computed once
+     * (after background subtraction), then every slider change only re-maps them.
+     * Returns the tuned settings, or null if the preview was cancelled.
      */
-    private boolean loadLUTColors(String lutName) {
-        try {
-            // Create a test image to apply LUT
-            ByteProcessor bp = new ByteProcessor(256, 1);
-            for (int i = 0; i < 256; i++) {
-                bp.set(i, 0, i);
-            }
-            ImagePlus tempImp = new ImagePlus("temp", bp);
-            
-            // Try to apply the LUT
-            IJ.run(tempImp, lutName, "");
+    private IMDParameters showLivePreview(ChannelView fretView, ChannelView cfpView, IMDParameters p) {
+        int n = fretView.currentIndex();
+        // Goes through the BG cache, so the processing run reuses this frame
+        ImageProcessor[] ips = new IMDEngine(p).frame(fretView, cfpView, n);
+        final ForkJoinPool pool = IMDExecutor.getPool(p.getThreads());
+        final IMDPreview preview = new IMDPreview(IMDEngine.getFloatPixels(ips[0]), IMDEngine.getFloatPixels(ips[1]),
+                                                  fretView.getWidth(), fretView.getHeight());
+        
+        String[] lutOptions = IMDLuts.names();
+        String lut = Arrays.asList(lutOptions).contains(p.getLut()) ? p.getLut() : lutOptions[0];
+        final byte[][][] lutTables = {null};
+        final int[][] colorTable = {null};    // Built per LUT when the run uses the colour table
+        final String[] loadedLut = {null};
+        final boolean[] downsample = {true};
+        final ImagePlus previewImp = new ImagePlus("IMD Preview (frame " + n + ")",
+                new ColorProcessor(fretView.getWidth(), fretView.getHeight()));
+        
+        double rmax = p.getRmax(), rmin = p.getRmin(), dmax = p.getDmax(), dmin = p.getDmin();
+        double ratioTop = Math.max(rmax, Math.min(preview.maxRatio(), 20.0));
+        double ratioBottom = Math.min(rmin, 0.0);
+        double maskTop = Math.max(dmax, preview.maxMask(IMDEngine.maskMode(p.getMaskSource())));
+        double maskBottom = Math.min(dmin, 0.0);
+        
+        GenericDialog gd = new GenericDialog("IMD - Live Preview");
+        gd.addSlider("Ratio max:", ratioBottom, ratioTop, rmax, 0.01);
+        gd.addSlider("Ratio min:", ratioBottom, ratioTop, rmin, 0.01);
+        gd.addSlider("Intensity max:", maskBottom, maskTop, dmax, 1);
+        gd.addSlider("Intensity min:", maskBottom, maskTop, dmin, 1);
+        gd.addChoice("Mask source:", IMDParameters.MASK_SOURCES, p.getMaskSource());
+        gd.addChoice("LUT:", lutOptions, lut);
+        gd.addCheckbox("Downsampled preview (faster)", downsample[0]);
+        gd.addMessage("Only the colour mapping is recomputed on each change.");
+        
+        DialogListener listener = (dlg, e) -> {
+            double rMax = dlg.getNextNumber();
+            double rMin = dlg.getNextNumber();
+            double dMax = dlg.getNextNumber();
+            double dMin = dlg.getNextNumber();
+            String mask = dlg.getNextChoice();
+            String lutName = dlg.getNextChoice();
+            downsample[0] = dlg.getNextBoolean();
+            if (dlg.invalidNumber()) return false;
             
-            // Get the LUT
-            LUT lut = tempImp.getProcessor().getLut();
-            if (lut != null) {
-                lut.getReds(lutReds);
-                lut.getGreens(lutGreens);
-                lut.getBlues(lutBlues);
-                tempImp.close();
-                return true;
+            long t0 = System.nanoTime();
+            if (!lutName.equals(loadedLut[0])) {
+                byte[][] rgb = IMDLuts.get(lutName);
+                lutTables[0] = rgb != null ? rgb : IMDLuts.get("Fire");
+                loadedLut[0] = lutName;
+                colorTable[0] = p.isColorTable()
+                        ? IMDEngine.buildColorTable(lutTables[0][0], lutTables[0][1], lutTables[0][2]) : null;
             }
-            
-            tempImp.close();
-            return false;
-            
-        } catch (Exception e) {
-            IJ.log("Error loading LUT: " + e.getMessage());
-            return false;
-        }
-    }
-    
-    /**
-     * Get available LUTs - comprehensive list
-     */
-    private String[] getAvailableLUTs() {
-        TreeSet<String> luts = new TreeSet<>();
-        
-        // Built-in LUTs (comprehensive list)
-        String[] builtIn = {
-            "Grays", "Fire", "Ice", "Spectrum", "Red", "Green", "Blue",
-            "Cyan", "Magenta", "Yellow", "Red/Green", "physics", "Jet", 
-            "Thermal", "Rainbow RGB", "Red Hot", "Green Fire Blue", 
-            "16 colors", "5 ramps", "6 shades"
+            IMDPreview.Planes planes = preview.planes(downsample[0]);
+            byte[][] rgb = lutTables[0];
+            int[] pixels = preview.render(planes, rgb[0], rgb[1], rgb[2], colorTable[0], IMDEngine.maskMode(mask),
+                                          (float) rMin, (float) (rMax - rMin),
+                                          (float) dMin, (float) (dMax - dMin), pool);
+            previewImp.setProcessor(new ColorProcessor(planes.width, planes.height, pixels));
+            if (previewImp.getWindow() == null) previewImp.show();
+            previewImp.updateAndDraw();
+            IJ.showStatus(String.format(Locale.US, "IMD preview: %.1f ms", (System.nanoTime() - t0) / 1e6));
+            return true;
         };
-        Collections.addAll(luts, builtIn);
-        
-        // Custom LUTs from luts folder
-        String ijDir = IJ.getDirectory("imagej");
-        if (ijDir != null) {
-            String lutDir = ijDir + "luts" + File.separator;
-            File folder = new File(lutDir);
-            if (folder.exists() && folder.isDirectory()) {
-                File[] files = folder.listFiles((d, n) -> n.endsWith(".lut"));
-                if (files != null) {
-                    for (File f : files) {
-                        String name = f.getName();
-                        luts.add(name.substring(0, name.length() - 4));
-                    }
-                }
-            }
-        }
-        
-        return luts.toArray(new String[0]);
-    }
-    
-    /**
-     * Load parameters from file
-     */
-    private void loadParameters() {
-        String ijDir = IJ.getDirectory("imagej");
-        if (ijDir == null) return;
-        
-        String paramFile = ijDir + "IMD_parameters.txt";
-        File f = new File(paramFile);
-        if (!f.exists()) return;
-        
-        try (BufferedReader reader = new BufferedReader(new FileReader(f))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
-                if (line.startsWith("rmax=")) {
-                    rmax = Double.parseDouble(line.substring(5));
-                } else if (line.startsWith("rmin=")) {
-                    rmin = Double.parseDouble(line.substring(5));
-                } else if (line.startsWith("dmax=")) {
-                    dmax = Double.parseDouble(line.substring(5));
-                } else if (line.startsWith("dmin=")) {
-                    dmin = Double.parseDouble(line.substring(5));
-                } else if (line.startsWith("rolling_ball_radius=")) {
-                    rollingBallRadius = Double.parseDouble(line.substring(20));
-                } else if (line.startsWith("bg_smoothing=")) {
-                    bgSmoothing = Double.parseDouble(line.substring(13));
-                } else if (line.startsWith("bg_method=")) {
-                    bgMethod = line.substring(10).trim();
-                } else if (line.startsWith("lut=")) {
-                    lutChoice = line.substring(4).trim();
-                } else if (line.startsWith("mask_source=")) {
-                    maskSource = line.substring(12).trim();
-                } else if (line.startsWith("acceptor_channel=")) {
-                    acceptorChannel = Integer.parseInt(line.substring(17).trim());
-                } else if (line.startsWith("donor_channel=")) {
-                    donorChannel = Integer.parseInt(line.substring(14).trim());
-                }
-            }
-        } catch (Exception e) { 
-            // Ignore errors, use defaults
-        }
-    }
-    
-    /**
-     * Save parameters to file
-     */
-    private void saveParameters() {
-        String ijDir = IJ.getDirectory("imagej");
-        if (ijDir == null) return;
+        gd.addDialogListener(listener);
+        listener.dialogItemChanged(gd, null);    // initial render
+        gd.resetCounters();
+        gd.showDialog();
+        previewImp.changes = false;
+        previewImp.close();
         
-        String paramFile = ijDir + "IMD_parameters.txt";
-        try (PrintWriter w = new PrintWriter(new FileWriter(paramFile))) {
-            w.println("rmax=" + rmax);
-            w.println("rmin=" + rmin);
-            w.println("dmax=" + dmax);
-            w.println("dmin=" + dmin);
-            w.println("rolling_ball_radius=" + rollingBallRadius);
-            w.println("bg_smoothing=" + bgSmoothing);
-            w.println("bg_method=" + bgMethod);
-            w.println("lut=" + lutChoice);
-            w.println("mask_source=" + maskSource);
-            w.println("acceptor_channel=" + acceptorChannel);
-            w.println("donor_channel=" + donorChannel);
-            IJ.log("Parameters saved to: " + paramFile);
-        } catch (Exception e) {
-            IJ.log("Warning: Could not save parameters");
-        }
+        if (gd.wasCanceled()) return null;
+        rmax = gd.getNextNumber();
+        rmin = gd.getNextNumber();
+        dmax = gd.getNextNumber();
+        dmin = gd.getNextNumber();
+        return p.toBuilder().ratioRange(rmin, rmax).intensityRange(dmin, dmax)
+                .maskSource(gd.getNextChoice()).lut(gd.getNextChoice()).build();
     }
 }
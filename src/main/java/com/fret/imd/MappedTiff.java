@@ -0,0 +1,182 @@
+package com.fret.imd;
+
+import ij.*;
+import ij.io.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-mapped planes of an uncompressed 8-, 16- or 32-bit (float) TIFF.
+ *
+ * The IFDs are parsed once with ImageJ's TiffDecoder; the file is then
+ * mapped read-only in segments of up to MAX_SEGMENT bytes, and each plane is
+ * handed out as a Byte/Short/FloatBuffer view in the file's byte order. The
+ * kernels read those views directly, so pixels go from the page cache to the
+ * output without being copied onto the heap, and files larger than the heap
+ * can be processed.
+ */
+final class MappedTiff {
+
+    // Largest single mapping; consecutive planes share a segment up to this size
+    private static final long MAX_SEGMENT = 1L << 30;
+
+    private final int bytesPerPixel;
+    private final int planeBytes;
+    private final ByteOrder order;
+    private final long[] offsets;
+    private final int[] segmentOf;
+    private final long[] segmentStart;
+    private final MappedByteBuffer[] segments;
+
+    private MappedTiff(FileChannel channel, long[] offsets, int bytesPerPixel, int planeBytes,
+                       ByteOrder order) throws IOException {
+        this.offsets = offsets;
+        this.bytesPerPixel = bytesPerPixel;
+        this.planeBytes = planeBytes;
+        this.order = order;
+
+        // Group consecutive planes into segments
+        segmentOf = new int[offsets.length];
+        long[] start = new long[offsets.length];
+        long[] end = new long[offsets.length];
+        int n = -1;
+        for (int k = 0; k < offsets.length; k++) {
+            long planeEnd = offsets[k] + planeBytes;
+            if (n < 0 || offsets[k] < start[n] || planeEnd - start[n] > MAX_SEGMENT) {
+                n++;
+                start[n] = offsets[k];
+                end[n] = planeEnd;
+            } else if (planeEnd > end[n]) {
+                end[n] = planeEnd;
+            }
+            segmentOf[k] = n;
+        }
+        segmentStart = new long[n + 1];
+        segments = new MappedByteBuffer[n + 1];
+        for (int s = 0; s <= n; s++) {
+            segmentStart[s] = start[s];
+            segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start[s], end[s] - start[s]);
+        }
+    }
+
+    /**
+     * Map the TIFF an image was opened from, or return null when its planes
+     * cannot be read in place (not a single TIFF file, compressed, split
+     * strips, unsupported pixel type, planes of 2 GiB or more, or plane count
+     * not matching the stack)
+     */
+    static MappedTiff open(ImagePlus imp) {
+        FileInfo fi = imp.getOriginalFileInfo();
+        if (fi == null || fi.directory == null || fi.fileName == null) return null;
+        String name = fi.fileName.toLowerCase();
+        if (!name.endsWith(".tif") && !name.endsWith(".tiff")) return null;
+        File file = new File(fi.directory, fi.fileName);
+        if (!file.isFile()) return null;
+
+        FileInfo[] info;
+        try {
+            info = new TiffDecoder(fi.directory, fi.fileName).getTiffInfo();
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+        if (info == null || info.length == 0) return null;
+
+        FileInfo first = info[0];
+        int bytesPerPixel = bytesPerPixel(first.fileType);
+        if (bytesPerPixel == 0 || first.width != imp.getWidth() || first.height != imp.getHeight()) {
+            return null;
+        }
+        // A plane must fit one buffer (2 GiB); larger planes are left to ImageJ's reader
+        long planeSize = (long) first.width * first.height * bytesPerPixel;
+        if (planeSize > Integer.MAX_VALUE) return null;
+        int planeBytes = (int) planeSize;
+
+        long[] offsets;
+        if (info.length == 1) {
+            // ImageJ-style stack: one IFD describing nImages equally spaced planes
+            if (!mappable(first, first.fileType, planeBytes)) return null;
+            int nImages = Math.max(1, first.nImages);
+            offsets = new long[nImages];
+            for (int k = 0; k < nImages; k++) {
+                offsets[k] = first.getOffset() + (long) k * (planeBytes + first.gapBetweenImages);
+            }
+        } else {
+            offsets = new long[info.length];
+            for (int k = 0; k < info.length; k++) {
+                FileInfo f = info[k];
+                if (f.nImages > 1 || f.width != first.width || f.height != first.height
+                        || f.intelByteOrder != first.intelByteOrder
+                        || !mappable(f, first.fileType, planeBytes)) {
+                    return null;
+                }
+                offsets[k] = f.stripOffsets != null && f.stripOffsets.length > 0
+                           ? f.stripOffsets[0] & 0xffffffffL : f.getOffset();
+            }
+        }
+        if (offsets.length != imp.getStackSize()) return null;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            for (long offset : offsets) {
+                if (offset < 0 || offset + planeBytes > size) return null;
+            }
+            // Mappings stay valid after the channel is closed
+            return new MappedTiff(channel, offsets, bytesPerPixel, planeBytes,
+                                  first.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        } catch (IOException | IllegalArgumentException e) {
+            IJ.log("IMD: cannot map " + file + " (" + e.getMessage() + "), reading it through ImageJ");
+            return null;
+        }
+    }
+
+    /**
+     * Read-only view of plane index (1-based stack index): a ByteBuffer,
+     * ShortBuffer or FloatBuffer in the file's byte order
+     */
+    Buffer plane(int index) {
+        int k = index - 1;
+        int s = segmentOf[k];
+        ByteBuffer b = segments[s].duplicate();
+        int pos = (int) (offsets[k] - segmentStart[s]);
+        b.position(pos);
+        b.limit(pos + planeBytes);
+        b = b.slice().order(order);
+        if (bytesPerPixel == 2) return b.asShortBuffer();
+        if (bytesPerPixel == 4) return b.asFloatBuffer();
+        return b;
+    }
+
+    int getBytesPerPixel() {
+        return bytesPerPixel;
+    }
+
+    private static int bytesPerPixel(int fileType) {
+        switch (fileType) {
+            case FileInfo.GRAY8: return 1;
+            case FileInfo.GRAY16_UNSIGNED: return 2;
+            case FileInfo.GRAY32_FLOAT: return 4;
+            default: return 0;
+        }
+    }
+
+    /**
+     * Uncompressed plane of the expected type stored in one contiguous run of strips
+     */
+    private static boolean mappable(FileInfo f, int fileType, int planeBytes) {
+        if (f.compression != FileInfo.COMPRESSION_NONE || f.fileType != fileType) return false;
+        int[] strips = f.stripOffsets;
+        int[] lengths = f.stripLengths;
+        if (strips == null || strips.length <= 1) return true;
+        if (lengths == null || lengths.length != strips.length) return false;
+        long total = 0;
+        for (int i = 0; i < strips.length; i++) {
+            if (i > 0 && (strips[i] & 0xffffffffL) != (strips[i - 1] & 0xffffffffL) + (lengths[i - 1] & 0xffffffffL)) {
+                return false;
+            }
+            total += lengths[i] & 0xffffffffL;
+        }
+        return total >= planeBytes;
+    }
+}
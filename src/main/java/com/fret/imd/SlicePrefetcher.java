@@ -0,0 +1,121 @@
+package com.fret.imd;
+
+import ij.process.*;
+import java.util.concurrent.*;
+
+/**
+ * Read-ahead for disk-backed (virtual) inputs.
+ *
+ * One reader thread per channel loads slices from..to in order into a
+ * bounded queue, so disk I/O for upcoming slices overlaps with the ratio
+ * computation of earlier ones. next() hands out the FRET/CFP planes of the
+ * following slice; at most 'depth' slices per channel are buffered.
+ */
+final class SlicePrefetcher implements AutoCloseable {
+
+    // Marks the end of a channel (or a reader failure)
+    private static final ImageProcessor END = new ByteProcessor(1, 1);
+
+    private final Reader fretReader, cfpReader;
+
+    SlicePrefetcher(ChannelView fretView, ChannelView cfpView, int from, int to, int depth,
+                    IMDMetrics metrics) {
+        fretReader = new Reader(fretView, from, to, depth, metrics, "IMD-reader-FRET");
+        cfpReader = new Reader(cfpView, from, to, depth, metrics, "IMD-reader-CFP");
+        fretReader.start();
+        cfpReader.start();
+    }
+
+    /**
+     * Planes {fret, cfp} of the next slice, or null when cancelled.
+     * A read failure is rethrown.
+     */
+    ImageProcessor[] next() {
+        ImageProcessor fretIp = fretReader.take();
+        ImageProcessor cfpIp = fretIp != null ? cfpReader.take() : null;
+        if (fretIp == null || cfpIp == null) return null;
+        return new ImageProcessor[] {fretIp, cfpIp};
+    }
+
+    @Override
+    public void close() {
+        fretReader.interrupt();
+        cfpReader.interrupt();
+    }
+
+    /**
+     * Sequential reader of one channel
+     */
+    private static class Reader extends Thread {
+        private final ChannelView view;
+        private final int from, to;
+        private final IMDMetrics metrics;
+        private final BlockingQueue<ImageProcessor> queue;
+        private volatile Throwable failure;
+
+        Reader(ChannelView view, int from, int to, int depth, IMDMetrics metrics, String name) {
+            super(name);
+            setDaemon(true);
+            this.view = view;
+            this.from = from;
+            this.to = to;
+            this.metrics = metrics;
+            this.queue = new ArrayBlockingQueue<>(Math.max(1, depth));
+        }
+
+        @Override
+        public void run() {
+            long pixels = (long) view.getWidth() * view.getHeight();
+            boolean closed = false;
+            try {
+                for (int s = from; s <= to; s++) {
+                    ImageProcessor ip;
+                    long t = metrics.start();
+                    try {
+                        ip = view.getProcessor(s);
+                    } finally {
+                        metrics.stop(IMDMetrics.Stage.COPY, t, pixels);
+                    }
+                    queue.put(ip);
+                }
+            } catch (InterruptedException e) {
+                closed = true;
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                // Wait for room: offer() on a full queue would drop END and leave take() polling
+                if (!closed) {
+                    try {
+                        queue.put(END);
+                    } catch (InterruptedException e) {
+                        // Closed while waiting: nobody takes END any more
+                    }
+                }
+            }
+        }
+
+        /**
+         * Next plane, waiting for the reader; null when cancelled or exhausted
+         */
+        ImageProcessor take() {
+            try {
+                while (true) {
+                    if (IMDExecutor.isCancelled()) return null;
+                    ImageProcessor ip = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (ip == null) {
+                        if (failure != null) throw IMDExecutor.propagate(failure);
+                        continue;
+                    }
+                    if (ip == END) {
+                        if (failure != null) throw IMDExecutor.propagate(failure);
+                        return null;
+                    }
+                    return ip;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+}
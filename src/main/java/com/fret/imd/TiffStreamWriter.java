@@ -0,0 +1,119 @@
+package com.fret.imd;
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.Deflater;
+
+/**
+ * Multi-page RGB TIFF written one page at a time.
+ *
+ * Each page is stored as a single strip (raw or Deflate-compressed)
+ * followed by its IFD; the next-IFD pointer of the previous page is patched
+ * in place, so the file is a valid TIFF after every frame. No ImageJ
+ * description is written, so ImageJ opens the pages through their IFDs.
+ */
+final class TiffStreamWriter extends IMDStreamWriter {
+
+    private static final short BYTE_ORDER_INTEL = 0x4949;  // "II"
+    private static final short MAGIC = 42;
+
+    // IFD entry types
+    private static final short SHORT = 3;
+    private static final short LONG = 4;
+
+    private static final int N_ENTRIES = 11;
+    private static final int IFD_BYTES = 2 + 12 * N_ENTRIES + 4;
+
+    // Header: byte order, magic, first IFD pointer, BitsPerSample {8,8,8}
+    private static final int BITS_PER_SAMPLE_OFFSET = 8;
+    private static final int HEADER_BYTES = 16;
+
+    private final boolean deflate;
+    private long nextIfdPointer = 4;
+
+    TiffStreamWriter(File file, int width, int height, boolean deflate, ExecutorService pool,
+                     int parallelism) throws IOException {
+        super(file, width, height, pool, parallelism);
+        this.deflate = deflate;
+    }
+
+    @Override
+    void writeHeader() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        b.putShort(BYTE_ORDER_INTEL).putShort(MAGIC).putInt(0);
+        b.putShort((short) 8).putShort((short) 8).putShort((short) 8);
+        b.rewind();
+        append(b);
+    }
+
+    @Override
+    byte[] encode(int[] rgb) {
+        byte[] raw = new byte[rgb.length * 3];
+        for (int i = 0, j = 0; i < rgb.length; i++, j += 3) {
+            int c = rgb[i];
+            raw[j] = (byte) (c >> 16);
+            raw[j + 1] = (byte) (c >> 8);
+            raw[j + 2] = (byte) c;
+        }
+        if (!deflate) return raw;
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    void writeFrame(byte[] data) throws IOException {
+        long stripOffset = channel.position();
+        ByteBuffer strip = ByteBuffer.wrap(data);
+        append(strip);
+        if ((data.length & 1) != 0) append(ByteBuffer.allocate(1));  // IFDs start on a word boundary
+
+        long ifdOffset = channel.position();
+        ByteBuffer ifd = ByteBuffer.allocate(IFD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        ifd.putShort((short) N_ENTRIES);
+        entry(ifd, 254, LONG, 1, 0);                           // NewSubfileType
+        entry(ifd, 256, LONG, 1, width);                       // ImageWidth
+        entry(ifd, 257, LONG, 1, height);                      // ImageLength
+        entry(ifd, 258, SHORT, 3, BITS_PER_SAMPLE_OFFSET);     // BitsPerSample
+        entry(ifd, 259, SHORT, 1, deflate ? 8 : 1);            // Compression
+        entry(ifd, 262, SHORT, 1, 2);                          // Photometric: RGB
+        entry(ifd, 273, LONG, 1, stripOffset);                 // StripOffsets
+        entry(ifd, 277, SHORT, 1, 3);                          // SamplesPerPixel
+        entry(ifd, 278, LONG, 1, height);                      // RowsPerStrip
+        entry(ifd, 279, LONG, 1, data.length);                 // StripByteCounts
+        entry(ifd, 284, SHORT, 1, 1);                          // PlanarConfiguration: chunky
+        ifd.putInt(0);
+        ifd.rewind();
+        append(ifd);
+
+        patchInt(nextIfdPointer, ifdOffset);
+        nextIfdPointer = ifdOffset + IFD_BYTES - 4;
+    }
+
+    @Override
+    void finish() {
+        // Every page is complete as soon as it is written
+    }
+
+    private static void entry(ByteBuffer ifd, int tag, short type, int count, long value) {
+        ifd.putShort((short) tag).putShort(type).putInt(count);
+        if (type == SHORT && count == 1) {
+            ifd.putShort((short) value).putShort((short) 0);
+        } else {
+            ifd.putInt((int) value);
+        }
+    }
+}
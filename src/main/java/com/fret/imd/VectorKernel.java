@@ -0,0 +1,39 @@
+package com.fret.imd;
+
+/**
+ * Entry point of the SIMD shading kernel.
+ *
+ * This is the Java 8 version: it always reports the vector kernel as
+ * unavailable, so the scalar kernels are used. On Java 17 and later the
+ * multi-release JAR supplies META-INF/versions/17/com/fret/imd/VectorKernel,
+ * which implements the same methods with the Vector API.
+ */
+final class VectorKernel {
+
+    private VectorKernel() {
+    }
+
+    /**
+     * True when shade() may be called
+     */
+    static boolean isAvailable() {
+        return false;
+    }
+
+    /**
+     * Kernel in use, for the log
+     */
+    static String describe() {
+        return "scalar (vector kernel requires Java 17+)";
+    }
+
+    /**
+     * Shade pixels [from, to) exactly as the scalar kernels do. Returns false
+     * when the pixel type is not vectorised; the caller then runs the scalar kernel.
+     */
+    static boolean shade(Object fretPixels, Object cfpPixels, int[] rgbPixels, int from, int to,
+                         int maskMode, float fRmin, float fRrange, float fDmin, float fDrange,
+                         byte[] reds, byte[] greens, byte[] blues) {
+        return false;
+    }
+}
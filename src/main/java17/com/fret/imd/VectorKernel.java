@@ -0,0 +1,66 @@
+package com.fret.imd;
+
+/**
+ * Entry point of the SIMD shading kernel (Java 17+ version).
+ *
+ * The Vector API is still an incubator module, so it is only used when the
+ * JVM was started with --add-modules jdk.incubator.vector and not disabled
+ * with -Dimd.vector=false. Before first use the vector kernel is compared
+ * with the scalar one on a test pattern (all pixel types, mask sources and
+ * edge values); on any difference the scalar kernels are used instead.
+ */
+final class VectorKernel {
+
+    private static final boolean AVAILABLE;
+    private static final String DESCRIPTION;
+
+    static {
+        boolean available = false;
+        String description;
+        if (!Boolean.parseBoolean(System.getProperty("imd.vector", "true"))) {
+            description = "scalar (vector kernel disabled by imd.vector=false)";
+        } else if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            description = "scalar (start Java with --add-modules jdk.incubator.vector for the vector kernel)";
+        } else {
+            try {
+                // VectorShading is only loaded once the module is known to be present
+                String mismatch = VectorShading.selfTest();
+                available = mismatch == null;
+                description = available ? VectorShading.describe()
+                                         : "scalar (vector kernel differs from scalar: " + mismatch + ")";
+            } catch (Throwable e) {
+                description = "scalar (vector kernel unavailable: " + e + ")";
+            }
+        }
+        AVAILABLE = available;
+        DESCRIPTION = description;
+    }
+
+    private VectorKernel() {
+    }
+
+    /**
+     * True when shade() may be called
+     */
+    static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Kernel in use, for the log
+     */
+    static String describe() {
+        return DESCRIPTION;
+    }
+
+    /**
+     * Shade pixels [from, to) exactly as the scalar kernels do. Returns false
+     * when the pixel type is not vectorised; the caller then runs the scalar kernel.
+     */
+    static boolean shade(Object fretPixels, Object cfpPixels, int[] rgbPixels, int from, int to,
+                         int maskMode, float fRmin, float fRrange, float fDmin, float fDrange,
+                         byte[] reds, byte[] greens, byte[] blues) {
+        return VectorShading.shade(fretPixels, cfpPixels, rgbPixels, from, to, maskMode,
+                                   fRmin, fRrange, fDmin, fDrange, reds, greens, blues);
+    }
+}
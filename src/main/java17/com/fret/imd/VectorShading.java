@@ -0,0 +1,223 @@
+package com.fret.imd;
+
+import java.util.Random;
+import jdk.incubator.vector.*;
+
+/**
+ * Vector API implementation of the ratio / normalise / mask / LUT kernel.
+ *
+ * Each step mirrors the scalar kernel with the same float operations in the
+ * same order (lane-wise min/max follow Math.min/max, and truncation to int
+ * matches the Java cast for the 0-255 values involved, including NaN), and
+ * the LUT is read with a gather of packed RGB entries, so the output is
+ * bit-identical. Pixels past the last full vector are shaded by the scalar
+ * code.
+ */
+final class VectorShading {
+
+    private static final VectorSpecies<Float> F = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> I = IntVector.SPECIES_PREFERRED;
+    private static final int LANES = F.length();
+
+    // Pixels per block when widening short and byte pixels
+    private static final int BLOCK = 1024;
+
+    // 2^23: adding it moves the integer part of a small float into the mantissa
+    private static final float MAGIC = 8388608f;
+    private static final int MAGIC_BITS = Float.floatToRawIntBits(MAGIC);
+
+    // Packed LUT, widening blocks and gather indices, reused by each thread
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    private VectorShading() {
+    }
+
+    static String describe() {
+        return "Vector API (" + LANES + " float lanes)";
+    }
+
+    static boolean shade(Object fretPixels, Object cfpPixels, int[] rgbPixels, int from, int to,
+                         int maskMode, float fRmin, float fRrange, float fDmin, float fDrange,
+                         byte[] reds, byte[] greens, byte[] blues) {
+        if (fretPixels.getClass() != cfpPixels.getClass()) return false;
+        Buffers buffers = BUFFERS.get();
+        int[] lut = buffers.lut;
+        for (int i = 0; i < 256; i++) {
+            lut[i] = (reds[i] & 0xff) << 16 | (greens[i] & 0xff) << 8 | (blues[i] & 0xff);
+        }
+        int bound = from + F.loopBound(to - from);
+
+        if (fretPixels instanceof float[]) {
+            shadeFloats((float[]) fretPixels, (float[]) cfpPixels, from, rgbPixels, from, bound - from,
+                        maskMode, fRmin, fRrange, fDmin, fDrange, lut, buffers.index);
+        } else if (fretPixels instanceof short[] || fretPixels instanceof byte[]) {
+            // Integer pixels are widened to floats a block at a time, so a single
+            // vector loop (small enough to be compiled as a whole) serves all types
+            float[] fret = buffers.fret, cfp = buffers.cfp;
+            for (int start = from; start < bound; start += BLOCK) {
+                int n = Math.min(BLOCK, bound - start);
+                widen(fretPixels, start, fret, n);
+                widen(cfpPixels, start, cfp, n);
+                shadeFloats(fret, cfp, 0, rgbPixels, start, n, maskMode, fRmin, fRrange, fDmin, fDrange,
+                            lut, buffers.index);
+            }
+        } else {
+            return false;
+        }
+        for (int i = bound; i < to; i++) {
+            rgbPixels[i] = scalar(fretPixels, cfpPixels, i, maskMode, fRmin, fRrange, fDmin, fDrange,
+                                  reds, greens, blues);
+        }
+        return true;
+    }
+
+    private static void widen(Object pixels, int from, float[] dst, int n) {
+        if (pixels instanceof short[]) {
+            short[] src = (short[]) pixels;
+            for (int i = 0; i < n; i++) dst[i] = src[from + i] & 0xffff;
+        } else {
+            byte[] src = (byte[]) pixels;
+            for (int i = 0; i < n; i++) dst[i] = src[from + i] & 0xff;
+        }
+    }
+
+    /**
+     * Shade n pixels (a multiple of LANES) of fret/cfp starting at src into
+     * rgbPixels starting at dst
+     */
+    private static void shadeFloats(float[] fretPixels, float[] cfpPixels, int src, int[] rgbPixels, int dst,
+                                    int n, int maskMode, float fRmin, float fRrange, float fDmin, float fDrange,
+                                    int[] lut, int[] index) {
+        // Loop-invariant lane masks select the mask source without branching on vectors
+        VectorMask<Float> useFret = F.maskAll(maskMode == IMDEngine.MASK_FRET);
+        VectorMask<Float> useAverage = F.maskAll(maskMode == IMDEngine.MASK_AVERAGE);
+        FloatVector magic = FloatVector.broadcast(F, MAGIC);
+        boolean skipDark = fDrange > 0;
+        for (int k = 0; k < n; k += LANES) {
+            FloatVector fret = FloatVector.fromArray(F, fretPixels, src + k);
+            FloatVector cfp = FloatVector.fromArray(F, cfpPixels, src + k);
+            FloatVector maskValue = cfp.blend(fret, useFret).blend(cfp.add(fret).div(2.0f), useAverage);
+
+            // Lanes at or below dmin are black whatever the ratio; skip all-dark vectors
+            if (skipDark && !maskValue.compare(VectorOperators.GT, fDmin).anyTrue()) {
+                IntVector.zero(I).intoArray(rgbPixels, dst + k);
+                continue;
+            }
+
+            // ratio = cfp != 0 ? fret / cfp : 0, and NaN -> 0
+            FloatVector ratio = fret.div(cfp);
+            ratio = ratio.blend(0f, cfp.compare(VectorOperators.EQ, 0f).or(ratio.compare(VectorOperators.NE, ratio)));
+            FloatVector norm = ratio.sub(fRmin).div(fRrange).max(0f).min(1f);
+            truncate(norm.mul(255f), magic).intoArray(index, 0);
+
+            FloatVector mask = maskValue.sub(fDmin).div(fDrange).max(0f).min(1f);
+
+            // (int) (lutChannel * mask) for each channel of the gathered LUT entries
+            IntVector colour = IntVector.fromArray(I, lut, 0, index, 0);
+            IntVector r = truncate(((FloatVector) colour.lanewise(VectorOperators.LSHR, 16).and(0xff)
+                                   .convert(VectorOperators.I2F, 0)).mul(mask), magic);
+            IntVector g = truncate(((FloatVector) colour.lanewise(VectorOperators.LSHR, 8).and(0xff)
+                                   .convert(VectorOperators.I2F, 0)).mul(mask), magic);
+            IntVector b = truncate(((FloatVector) colour.and(0xff)
+                                   .convert(VectorOperators.I2F, 0)).mul(mask), magic);
+            r.lanewise(VectorOperators.LSHL, 16).or(g.lanewise(VectorOperators.LSHL, 8)).or(b)
+             .intoArray(rgbPixels, dst + k);
+        }
+    }
+
+    /**
+     * (int) x for lanes in [0, 256] or NaN. The float-to-int cast is not
+     * compiled to vector code on every JDK, so the integer part is taken
+     * from the mantissa after adding 2^23, which is exact in this range.
+     */
+    private static IntVector truncate(FloatVector x, FloatVector magic) {
+        x = x.blend(0f, x.compare(VectorOperators.NE, x));
+        FloatVector rounded = x.add(magic).sub(magic);
+        rounded = rounded.sub(1f, rounded.compare(VectorOperators.GT, x));
+        return ((IntVector) rounded.add(magic).reinterpretAsInts()).sub(MAGIC_BITS);
+    }
+
+    private static final class Buffers {
+        final int[] lut = new int[256];
+        final float[] fret = new float[BLOCK];
+        final float[] cfp = new float[BLOCK];
+        final int[] index = new int[LANES];
+    }
+
+    /**
+     * Scalar reference: the same arithmetic as the array kernels of the plugin
+     */
+    private static int scalar(Object fretPixels, Object cfpPixels, int i, int maskMode,
+                              float fRmin, float fRrange, float fDmin, float fDrange,
+                              byte[] reds, byte[] greens, byte[] blues) {
+        float fretVal, cfpVal;
+        if (fretPixels instanceof float[]) {
+            fretVal = ((float[]) fretPixels)[i];
+            cfpVal = ((float[]) cfpPixels)[i];
+        } else if (fretPixels instanceof short[]) {
+            fretVal = ((short[]) fretPixels)[i] & 0xffff;
+            cfpVal = ((short[]) cfpPixels)[i] & 0xffff;
+        } else {
+            fretVal = ((byte[]) fretPixels)[i] & 0xff;
+            cfpVal = ((byte[]) cfpPixels)[i] & 0xff;
+        }
+        float ratio = cfpVal != 0 ? fretVal / cfpVal : 0;
+        if (Float.isNaN(ratio)) ratio = 0;
+        float maskValue = maskMode == IMDEngine.MASK_FRET ? fretVal
+                        : maskMode == IMDEngine.MASK_AVERAGE ? (cfpVal + fretVal) / 2.0f
+                        : cfpVal;
+        return IMDEngine.shade(ratio, maskValue, fRmin, fRrange, fDmin, fDrange,
+                               reds, greens, blues);
+    }
+
+    /**
+     * Compare the vector and scalar kernels on random and edge-case pixels of
+     * every type, mask source and a few ranges; null when identical,
+     * otherwise a description of the first difference
+     */
+    static String selfTest() {
+        Random random = new Random(42);
+        int n = 37 * LANES + 5;
+        byte[] reds = new byte[256], greens = new byte[256], blues = new byte[256];
+        random.nextBytes(reds);
+        random.nextBytes(greens);
+        random.nextBytes(blues);
+
+        float[] fretF = new float[n], cfpF = new float[n];
+        short[] fretS = new short[n], cfpS = new short[n];
+        byte[] fretB = new byte[n], cfpB = new byte[n];
+        float[] specials = {0f, -0f, 1f, -1f, Float.NaN, Float.POSITIVE_INFINITY,
+                            Float.NEGATIVE_INFINITY, Float.MIN_VALUE, Float.MAX_VALUE, 65535f};
+        for (int i = 0; i < n; i++) {
+            fretS[i] = (short) (i % 7 == 0 ? 0 : random.nextInt(65536));
+            cfpS[i] = (short) (i % 5 == 0 ? 0 : i % 11 == 0 ? 65535 : random.nextInt(65536));
+            fretB[i] = (byte) random.nextInt(256);
+            cfpB[i] = (byte) (i % 5 == 0 ? 0 : random.nextInt(256));
+            fretF[i] = i % 3 == 0 ? specials[random.nextInt(specials.length)] : random.nextFloat() * 5000 - 500;
+            cfpF[i] = i % 4 == 0 ? specials[random.nextInt(specials.length)] : random.nextFloat() * 5000 - 500;
+        }
+
+        float[][] ranges = {{-1f, 4f, 0f, 6000f}, {0.5f, 1.25f, 100f, 900f}, {2f, 0f, 0f, 0f}, {-3f, -2f, 50f, -40f},
+                            {0f, 2f, 3000f, 100f}};
+        Object[][] inputs = {{fretF, cfpF}, {fretS, cfpS}, {fretB, cfpB}};
+        int[] expected = new int[n], actual = new int[n];
+        for (Object[] in : inputs) {
+            for (float[] r : ranges) {
+                for (int mode = 0; mode <= 2; mode++) {
+                    for (int from : new int[] {0, 3}) {
+                        if (!shade(in[0], in[1], actual, from, n, mode, r[0], r[1], r[2], r[3], reds, greens, blues)) {
+                            continue;
+                        }
+                        for (int i = from; i < n; i++) {
+                            expected[i] = scalar(in[0], in[1], i, mode, r[0], r[1], r[2], r[3], reds, greens, blues);
+                            if (expected[i] != actual[i]) {
+                                return in[0].getClass().getSimpleName() + " pixel " + i + ", mask mode " + mode;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
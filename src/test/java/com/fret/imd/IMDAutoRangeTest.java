@@ -0,0 +1,81 @@
+package com.fret.imd;
+
+import ij.*;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.process.*;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * With Restrict to ROI, auto-range takes its percentiles from the pixels
+ * inside the ROI only
+ */
+public class IMDAutoRangeTest {
+
+    private static final int WIDTH = 67, HEIGHT = 45;
+    private static final Roi RECT = new Roi(10, 5, 30, 20);
+
+    @Test
+    public void roiMatchesCroppedImage() {
+        for (boolean multiThreaded : new boolean[]{false, true}) {
+            IMDParameters params = IMDReference.params(IMDParameters.MASK_SOURCES[0]).restrictToRoi(true)
+                    .multiThreaded(multiThreaded).threads(3).build();
+            ImageStack fret = brightOutside(IMDReference.stack(16, WIDTH, HEIGHT, 3, 1));
+            ImageStack cfp = brightOutside(IMDReference.stack(16, WIDTH, HEIGHT, 3, 2));
+            ImagePlus fretImp = new ImagePlus("FRET", fret);
+            fretImp.setRoi((Roi) RECT.clone());
+            IMDParameters withRoi = new IMDEngine(params).autoRange(fretImp, new ImagePlus("CFP", cfp));
+            IMDParameters cropped = new IMDEngine(params).autoRange(new ImagePlus("FRET", fret.crop(10, 5, 0, 30, 20, 3)),
+                                                                    new ImagePlus("CFP", cfp.crop(10, 5, 0, 30, 20, 3)));
+            assertRange("rectangle, multi-threaded " + multiThreaded, cropped, withRoi);
+        }
+    }
+
+    @Test
+    public void pixelsOutsideShapeAreIgnored() {
+        // Values outside the oval would raise the upper intensity percentile
+        IMDParameters params = IMDReference.params(IMDParameters.MASK_SOURCES[0]).restrictToRoi(true).build();
+        Roi oval = new OvalRoi(10, 5, 30, 20);
+        ImageStack fret = IMDReference.stack(16, WIDTH, HEIGHT, 1, 1);
+        ImageStack cfp = IMDReference.stack(16, WIDTH, HEIGHT, 1, 2);
+        ImageStack fretMarked = fret.duplicate(), cfpMarked = cfp.duplicate();
+        ImageProcessor mask = oval.getMask();
+        for (int y = 0; y < 20; y++) {
+            for (int x = 0; x < 30; x++) {
+                if (mask.get(x, y) == 0) {
+                    fretMarked.getProcessor(1).set(10 + x, 5 + y, 60000);
+                    cfpMarked.getProcessor(1).set(10 + x, 5 + y, 60000);
+                }
+            }
+        }
+        ImagePlus fretImp = new ImagePlus("FRET", fret), fretMarkedImp = new ImagePlus("FRET", fretMarked);
+        fretImp.setRoi((Roi) oval.clone());
+        fretMarkedImp.setRoi((Roi) oval.clone());
+        assertRange("oval", new IMDEngine(params).autoRange(fretImp, new ImagePlus("CFP", cfp)),
+                    new IMDEngine(params).autoRange(fretMarkedImp, new ImagePlus("CFP", cfpMarked)));
+    }
+
+    /**
+     * Raise every pixel outside RECT, so a whole-frame histogram would differ
+     */
+    private static ImageStack brightOutside(ImageStack stack) {
+        for (int s = 1; s <= stack.getSize(); s++) {
+            ImageProcessor ip = stack.getProcessor(s);
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    if (!RECT.contains(x, y)) ip.set(x, y, 50000 + (x * y) % 10000);
+                }
+            }
+        }
+        return stack;
+    }
+
+    private static void assertRange(String message, IMDParameters expected, IMDParameters actual) {
+        assertEquals(message + ": rmin", expected.getRmin(), actual.getRmin(), 0);
+        assertEquals(message + ": rmax", expected.getRmax(), actual.getRmax(), 0);
+        assertEquals(message + ": dmin", expected.getDmin(), actual.getDmin(), 0);
+        assertEquals(message + ": dmax", expected.getDmax(), actual.getDmax(), 0);
+    }
+}
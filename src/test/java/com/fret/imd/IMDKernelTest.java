@@ -0,0 +1,124 @@
+package com.fret.imd;
+
+import ij.*;
+import ij.io.FileSaver;
+import java.io.File;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The bit-depth kernels and the slice-parallel, tiled, chunked and mapped
+ * paths render exactly what the IMD 2.0.1 renderer did
+ */
+public class IMDKernelTest {
+
+    private static final int[][] BIT_DEPTHS = {{8, 8}, {16, 16}, {32, 32}, {16, 8}};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void kernelsMatchReference() {
+        for (int[] depths : BIT_DEPTHS) {
+            for (String mask : IMDParameters.MASK_SOURCES) {
+                check(depths, 67, 45, 3, mask, IMDReference.params(mask).build());
+            }
+        }
+    }
+
+    @Test
+    public void sliceParallelMatchesReference() {
+        for (int[] depths : BIT_DEPTHS) {
+            String mask = IMDParameters.MASK_SOURCES[2];
+            check(depths, 67, 45, 5, mask, IMDReference.params(mask).multiThreaded(true).threads(3).build());
+        }
+    }
+
+    @Test
+    public void tiledMatchesReference() {
+        // One slice large enough to be split into row bands
+        for (int[] depths : BIT_DEPTHS) {
+            String mask = IMDParameters.MASK_SOURCES[0];
+            check(depths, 389, 347, 1, mask, IMDReference.params(mask).multiThreaded(true).threads(3).build());
+        }
+    }
+
+    @Test
+    public void chunkedMatchesReference() {
+        // A budget below one slice forces chunks of a single slice
+        for (int[] depths : BIT_DEPTHS) {
+            String mask = IMDParameters.MASK_SOURCES[1];
+            check(depths, 67, 45, 4, mask, IMDReference.params(mask).memoryBudgetMB(0.001).build());
+            check(depths, 67, 45, 4, mask, IMDReference.params(mask).memoryBudgetMB(0.001)
+                                                  .multiThreaded(true).threads(3).build());
+        }
+    }
+
+    @Test
+    public void mappedMatchesReference() throws Exception {
+        for (int bitDepth : new int[]{8, 16, 32}) {
+            ImageStack fret = IMDReference.stack(bitDepth, 67, 45, 3, 1);
+            ImageStack cfp = IMDReference.stack(bitDepth, 67, 45, 3, 2);
+            ImagePlus fretImp = openVirtual(fret, "fret" + bitDepth + ".tif");
+            ImagePlus cfpImp = openVirtual(cfp, "cfp" + bitDepth + ".tif");
+            assertTrue(bitDepth + "-bit TIFF is mapped", ChannelView.of(fretImp).isMapped());
+            for (String mask : IMDParameters.MASK_SOURCES) {
+                ImagePlus result = new IMDEngine(IMDReference.params(mask).build()).process(fretImp, cfpImp);
+                IMDReference.assertSame("mapped " + bitDepth + "-bit, " + mask,
+                                        IMDReference.render(fret, cfp, mask), result.getStack());
+            }
+        }
+    }
+
+    @Test
+    public void binningOneMatchesReference() {
+        // Binning 1x1 ("None") is the full-resolution path, not a 1-pixel block sum
+        String mask = IMDParameters.MASK_SOURCES[0];
+        for (int[] depths : BIT_DEPTHS) {
+            check(depths, 67, 45, 2, mask, IMDReference.params(mask).binning(1).build());
+            check(depths, 389, 347, 1, mask, IMDReference.params(mask).binning(1).multiThreaded(true).threads(3).build());
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void sharedEngineMatchesReference() throws Exception {
+        // One engine rendering images of different sizes on several threads at once
+        String mask = IMDParameters.MASK_SOURCES[2];
+        IMDEngine engine = new IMDEngine(IMDReference.params(mask).restrictToRoi(true).build());
+        int[][] sizes = {{67, 45}, {45, 67}, {101, 23}, {32, 32}};
+        ImageStack[][] inputs = new ImageStack[sizes.length][];
+        ImageStack[] results = new ImageStack[sizes.length];
+        Thread[] threads = new Thread[sizes.length];
+        for (int k = 0; k < sizes.length; k++) {
+            final int i = k;
+            inputs[i] = new ImageStack[] {IMDReference.stack(16, sizes[i][0], sizes[i][1], 3, 2 * i + 1),
+                                          IMDReference.stack(16, sizes[i][0], sizes[i][1], 3, 2 * i + 2)};
+            threads[i] = new Thread(() -> {
+                for (int run = 0; run < 10; run++) results[i] = engine.process(inputs[i][0], inputs[i][1]);
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < sizes.length; i++) {
+            threads[i].join();
+            IMDReference.assertSame(sizes[i][0] + "x" + sizes[i][1], IMDReference.render(inputs[i][0], inputs[i][1], mask),
+                                    results[i]);
+        }
+    }
+
+    private static void check(int[] depths, int width, int height, int nSlices, String mask, IMDParameters params) {
+        ImageStack fret = IMDReference.stack(depths[0], width, height, nSlices, 1);
+        ImageStack cfp = IMDReference.stack(depths[1], width, height, nSlices, 2);
+        ImagePlus result = new IMDEngine(params).process(new ImagePlus("FRET", fret), new ImagePlus("CFP", cfp));
+        IMDReference.assertSame(depths[0] + "/" + depths[1] + "-bit, " + mask + ", " + width + "x" + height,
+                                IMDReference.render(fret, cfp, mask), result.getStack());
+    }
+
+    private ImagePlus openVirtual(ImageStack stack, String name) throws Exception {
+        File file = new File(folder.getRoot(), name);
+        assertTrue(new FileSaver(new ImagePlus(name, stack)).saveAsTiffStack(file.getPath()));
+        return IJ.openVirtual(file.getPath());
+    }
+}
@@ -0,0 +1,28 @@
+package com.fret.imd;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Settings saved or recorded by earlier versions still select the same options
+ */
+public class IMDParametersTest {
+
+    @Test
+    public void legacyRollingBallLabelIsAliased() {
+        String current = IMDParameters.BG_METHODS[IMDBackground.ROLLING_BALL];
+        assertEquals("lut=Fire bg=[" + current + "] radius=50 ",
+                     IMDParameters.aliasLegacyOptions("lut=Fire bg=[Rolling ball (full resolution)] radius=50 "));
+        assertEquals(IMDBackground.ROLLING_BALL, IMDParameters.bgMethodIndex("Rolling ball (full resolution)"));
+        assertEquals(IMDBackground.ROLLING_BALL, IMDParameters.bgMethodIndex(current));
+    }
+
+    @Test
+    public void otherOptionsAreUnchanged() {
+        String options = "bg=[" + IMDParameters.BG_METHODS[0] + "] mask=FRET ";
+        assertEquals(options, IMDParameters.aliasLegacyOptions(options));
+        assertNull(IMDParameters.aliasLegacyOptions(null));
+    }
+}
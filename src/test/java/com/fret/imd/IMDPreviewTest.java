@@ -0,0 +1,37 @@
+package com.fret.imd;
+
+import ij.*;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * The full-resolution live preview shows exactly what the run renders,
+ * with and without the colour table
+ */
+public class IMDPreviewTest {
+
+    @Test
+    public void fullResolutionMatchesEngine() {
+        byte[][] lut = IMDLuts.get(IMDReference.LUT);
+        float fRmin = (float) IMDReference.RMIN, fRrange = (float) (IMDReference.RMAX - IMDReference.RMIN);
+        float fDmin = (float) IMDReference.DMIN, fDrange = (float) (IMDReference.DMAX - IMDReference.DMIN);
+        for (int bitDepth : new int[]{8, 16, 32}) {
+            ImageStack fret = IMDReference.stack(bitDepth, 67, 45, 1, 1);
+            ImageStack cfp = IMDReference.stack(bitDepth, 67, 45, 1, 2);
+            IMDPreview preview = new IMDPreview(IMDEngine.getFloatPixels(fret.getProcessor(1)),
+                                                IMDEngine.getFloatPixels(cfp.getProcessor(1)), 67, 45);
+            for (boolean colorTable : new boolean[]{false, true}) {
+                int[] table = colorTable ? IMDEngine.buildColorTable(lut[0], lut[1], lut[2]) : null;
+                for (String mask : IMDParameters.MASK_SOURCES) {
+                    IMDParameters params = IMDReference.params(mask).colorTable(colorTable).build();
+                    ImageStack expected = new IMDEngine(params).process(fret, cfp);
+                    int[] rgb = preview.render(preview.planes(false), lut[0], lut[1], lut[2], table,
+                                               IMDEngine.maskMode(mask), fRmin, fRrange, fDmin, fDrange, null);
+                    assertArrayEquals(bitDepth + "-bit, " + mask + ", colour table " + colorTable,
+                                      (int[]) expected.getPixels(1), rgb);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.fret.imd;
+
+import ij.*;
+import ij.process.*;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Reference renderer and test fixtures.
+ *
+ * render() is the single-threaded per-pixel loop of IMD 2.0.1 (float
+ * conversion, float ratio, mask, LUT), kept verbatim so that every
+ * optimised path can be checked against it bit for bit.
+ */
+final class IMDReference {
+
+    static final String LUT = "Fire";
+    static final double RMIN = 0.25, RMAX = 3.0;
+    static final double DMIN = 40, DMAX = 3000;
+
+    private IMDReference() {
+    }
+
+    /**
+     * Settings shared by the tests: exact per-pixel path (no colour table),
+     * no binning, single-threaded unless changed by the caller
+     */
+    static IMDParameters.Builder params(String maskSource) {
+        return IMDParameters.builder()
+                .lut(LUT)
+                .ratioRange(RMIN, RMAX)
+                .intensityRange(DMIN, DMAX)
+                .maskSource(maskSource)
+                .colorTable(false)
+                .binning(1)
+                .multiThreaded(false);
+    }
+
+    /**
+     * Expected RGB stack for the given inputs, rendered slice by slice
+     */
+    static int[][] render(ImageStack fret, ImageStack cfp, String maskSource) {
+        return render(fret, cfp, maskSource, DMIN, DMAX);
+    }
+
+    /**
+     * Expected RGB stack with another intensity range
+     */
+    static int[][] render(ImageStack fret, ImageStack cfp, String maskSource, double dmin, double dmax) {
+        byte[][] lut = IMDLuts.get(LUT);
+        int[][] result = new int[fret.getSize()][];
+        for (int s = 1; s <= fret.getSize(); s++) {
+            result[s - 1] = render(getFloatPixels(fret.getProcessor(s)), getFloatPixels(cfp.getProcessor(s)),
+                                   fret.getWidth() * fret.getHeight(), maskSource,
+                                   (float) RMIN, (float) (RMAX - RMIN), (float) dmin, (float) (dmax - dmin),
+                                   lut[0], lut[1], lut[2]);
+        }
+        return result;
+    }
+
+    static int[] render(float[] fretPixels, float[] cfpPixels, int size, String maskSource,
+                        float fRmin, float fRrange, float fDmin, float fDrange,
+                        byte[] reds, byte[] greens, byte[] blues) {
+        int[] rgbPixels = new int[size];
+        for (int i = 0; i < size; i++) {
+            float fretVal = fretPixels[i];
+            float cfpVal = cfpPixels[i];
+
+            float ratio;
+            if (cfpVal != 0) {
+                ratio = fretVal / cfpVal;
+            } else {
+                ratio = 0;
+            }
+            if (Float.isNaN(ratio)) {
+                ratio = 0;
+            }
+
+            float normRatio = (ratio - fRmin) / fRrange;
+            if (normRatio < 0) normRatio = 0;
+            else if (normRatio > 1) normRatio = 1;
+
+            int idx = (int) (normRatio * 255);
+            if (idx > 255) idx = 255;
+            if (idx < 0) idx = 0;
+
+            float maskValue;
+            if (maskSource.equals("FRET")) {
+                maskValue = fretVal;
+            } else if (maskSource.equals("Average (CFP+FRET)/2")) {
+                maskValue = (cfpVal + fretVal) / 2.0f;
+            } else {
+                maskValue = cfpVal;
+            }
+
+            float mask = (maskValue - fDmin) / fDrange;
+            if (mask < 0) mask = 0;
+            else if (mask > 1) mask = 1;
+
+            int r = (int) ((reds[idx] & 0xff) * mask);
+            int g = (int) ((greens[idx] & 0xff) * mask);
+            int b = (int) ((blues[idx] & 0xff) * mask);
+            if (r > 255) r = 255;
+            if (g > 255) g = 255;
+            if (b > 255) b = 255;
+
+            rgbPixels[i] = (r << 16) | (g << 8) | b;
+        }
+        return rgbPixels;
+    }
+
+    private static float[] getFloatPixels(ImageProcessor ip) {
+        int size = ip.getWidth() * ip.getHeight();
+        float[] result = new float[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = ip.getf(i);
+        }
+        return result;
+    }
+
+    /**
+     * Stack of random pixels of the given bit depth (8, 16 or 32). About one
+     * pixel in six is zero, at positions that depend on the seed (zero
+     * denominators, and 0/0 where both channels are zero); 32-bit stacks
+     * also hold NaN, infinities, -0 and negative values.
+     */
+    static ImageStack stack(int bitDepth, int width, int height, int nSlices, long seed) {
+        Random random = new Random(seed);
+        float[] special = {Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, -0f, -25f};
+        ImageStack stack = new ImageStack(width, height);
+        for (int s = 0; s < nSlices; s++) {
+            ImageProcessor ip = bitDepth == 8 ? new ByteProcessor(width, height)
+                              : bitDepth == 16 ? new ShortProcessor(width, height)
+                              : new FloatProcessor(width, height);
+            int max = bitDepth == 8 ? 256 : 4000;
+            for (int i = 0; i < width * height; i++) {
+                if ((i + seed) % 7 == 0 || i % 13 == 0) continue;
+                if (bitDepth == 32 && i % 11 == 0) {
+                    ip.setf(i, special[random.nextInt(special.length)]);
+                } else {
+                    ip.setf(i, bitDepth == 32 ? random.nextFloat() * max : random.nextInt(max));
+                }
+            }
+            stack.addSlice(ip);
+        }
+        return stack;
+    }
+
+    /**
+     * Assert that an RGB stack holds exactly the expected pixels
+     */
+    static void assertSame(String message, int[][] expected, ImageStack actual) {
+        assertEquals(message + ": slices", expected.length, actual.getSize());
+        for (int s = 1; s <= expected.length; s++) {
+            assertArrayEquals(message + ": slice " + s, expected[s - 1], (int[]) actual.getProcessor(s).getPixels());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.fret.imd;
+
+import ij.*;
+import ij.gui.Roi;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Restricting to an ROI that covers the whole image, and skipping pixels at
+ * or below dmin, render exactly what the 2.0.1 renderer did
+ */
+public class IMDRegionTest {
+
+    private static final int[][] BIT_DEPTHS = {{8, 8}, {16, 16}, {32, 32}, {16, 8}};
+
+    @Test
+    public void fullRoiMatchesReference() {
+        String mask = IMDParameters.MASK_SOURCES[0];
+        for (int[] depths : BIT_DEPTHS) {
+            // A rectangle equal to the image, one reaching past its edges, and no ROI at all
+            check(depths, 67, 45, 3, new Roi(0, 0, 67, 45), IMDReference.params(mask).restrictToRoi(true).build());
+            check(depths, 67, 45, 3, new Roi(-5, -5, 80, 60), IMDReference.params(mask).restrictToRoi(true).build());
+            check(depths, 67, 45, 3, null, IMDReference.params(mask).restrictToRoi(true).build());
+            check(depths, 67, 45, 3, new Roi(0, 0, 67, 45), IMDReference.params(mask).restrictToRoi(true)
+                                                                   .multiThreaded(true).threads(3).build());
+            check(depths, 389, 347, 1, new Roi(0, 0, 389, 347), IMDReference.params(mask).restrictToRoi(true)
+                                                                       .multiThreaded(true).threads(3).build());
+        }
+    }
+
+    @Test
+    public void belowThresholdMatchesReference() {
+        // Most pixels at or below dmin: the early-out must still give the reference black
+        for (int[] depths : BIT_DEPTHS) {
+            ImageStack fret = IMDReference.stack(depths[0], 67, 45, 3, 1);
+            ImageStack cfp = IMDReference.stack(depths[1], 67, 45, 3, 2);
+            for (String mask : IMDParameters.MASK_SOURCES) {
+                for (double dmin : new double[]{0, 200, 255}) {
+                    IMDParameters params = IMDReference.params(mask).intensityRange(dmin, dmin + 1000).build();
+                    ImagePlus result = new IMDEngine(params).process(new ImagePlus("FRET", fret),
+                                                                     new ImagePlus("CFP", cfp));
+                    IMDReference.assertSame(depths[0] + "/" + depths[1] + "-bit, " + mask + ", dmin " + dmin,
+                                            IMDReference.render(fret, cfp, mask, dmin, dmin + 1000),
+                                            result.getStack());
+                }
+            }
+        }
+    }
+
+    private static void check(int[] depths, int width, int height, int nSlices, Roi roi, IMDParameters params) {
+        ImageStack fret = IMDReference.stack(depths[0], width, height, nSlices, 1);
+        ImageStack cfp = IMDReference.stack(depths[1], width, height, nSlices, 2);
+        ImagePlus fretImp = new ImagePlus("FRET", fret);
+        if (roi != null) fretImp.setRoi(roi);
+        ImagePlus result = new IMDEngine(params).process(fretImp, new ImagePlus("CFP", cfp));
+        String message = depths[0] + "/" + depths[1] + "-bit, ROI " + (roi != null ? roi.getBounds() : null);
+        assertEquals(message + ": width", width, result.getWidth());
+        assertEquals(message + ": height", height, result.getHeight());
+        IMDReference.assertSame(message, IMDReference.render(fret, cfp, params.getMaskSource()), result.getStack());
+    }
+}
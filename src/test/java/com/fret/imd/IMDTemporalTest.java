@@ -0,0 +1,61 @@
+package com.fret.imd;
+
+import ij.*;
+import org.junit.Test;
+
+/**
+ * Temporal smoothing leaves the output of the 2.0.1 renderer unchanged when
+ * it has nothing to smooth: a window of one frame, or frames that are all alike
+ */
+public class IMDTemporalTest {
+
+    private static final int[] BIT_DEPTHS = {8, 16, 32};
+
+    @Test
+    public void windowOneMatchesReference() {
+        for (int bitDepth : BIT_DEPTHS) {
+            ImageStack fret = IMDReference.stack(bitDepth, 67, 45, 4, 1);
+            ImageStack cfp = IMDReference.stack(bitDepth, 67, 45, 4, 2);
+            for (String filter : IMDParameters.TEMPORAL_FILTERS) {
+                for (String mask : IMDParameters.MASK_SOURCES) {
+                    for (boolean multiThreaded : new boolean[]{false, true}) {
+                        IMDParameters params = IMDReference.params(mask).temporalSmoothing(filter, 1, true)
+                                .multiThreaded(multiThreaded).threads(3).build();
+                        IMDReference.assertSame(bitDepth + "-bit, " + filter + ", " + mask,
+                                                IMDReference.render(fret, cfp, mask),
+                                                new IMDEngine(params).process(fret, cfp));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void constantFramesMatchReference() {
+        // The smoothing kernel runs, but the mean or median of equal values is that value
+        for (int bitDepth : BIT_DEPTHS) {
+            ImageStack fret = repeat(IMDReference.stack(bitDepth, 67, 45, 1, 1), 5);
+            ImageStack cfp = repeat(IMDReference.stack(bitDepth, 67, 45, 1, 2), 5);
+            for (String filter : IMDParameters.TEMPORAL_FILTERS) {
+                for (int window = 2; window <= 4; window++) {
+                    for (boolean smoothMask : new boolean[]{false, true}) {
+                        String mask = IMDParameters.MASK_SOURCES[2];
+                        IMDParameters params = IMDReference.params(mask).temporalSmoothing(filter, window, smoothMask)
+                                .build();
+                        IMDReference.assertSame(bitDepth + "-bit, " + filter + " of " + window + ", mask " + smoothMask,
+                                                IMDReference.render(fret, cfp, mask),
+                                                new IMDEngine(params).process(fret, cfp));
+                    }
+                }
+            }
+        }
+    }
+
+    private static ImageStack repeat(ImageStack slice, int n) {
+        ImageStack stack = new ImageStack(slice.getWidth(), slice.getHeight());
+        for (int s = 0; s < n; s++) {
+            stack.addSlice(slice.getProcessor(1).duplicate());
+        }
+        return stack;
+    }
+}
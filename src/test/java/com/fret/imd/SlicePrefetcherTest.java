@@ -0,0 +1,57 @@
+package com.fret.imd;
+
+import ij.*;
+import ij.process.*;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * A read failure reaches the consumer, also when the read-ahead queue was
+ * full at the time (previously the end marker was dropped and next() hung)
+ */
+public class SlicePrefetcherTest {
+
+    @Test(timeout = 10000)
+    public void failureWithFullQueueIsRethrown() throws Exception {
+        ChannelView fret = ChannelView.of(new ImagePlus("FRET", new FailingStack(3)));
+        ChannelView cfp = ChannelView.of(new ImagePlus("CFP", new FailingStack(3)));
+        try (SlicePrefetcher prefetcher = new SlicePrefetcher(fret, cfp, 1, 5, 1, new IMDMetrics())) {
+            // Let the readers fill their queues (depth 1) and fail on slice 3
+            Thread.sleep(300);
+            assertNotNull(prefetcher.next());
+            assertNotNull(prefetcher.next());
+            try {
+                prefetcher.next();
+                fail("read failure not rethrown");
+            } catch (IllegalStateException e) {
+                assertEquals("unreadable slice 3", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Virtual stack of 5 slices whose slice failAt cannot be read
+     */
+    private static final class FailingStack extends VirtualStack {
+        private final int failAt;
+
+        FailingStack(int failAt) {
+            super(8, 8, null, null);
+            this.failAt = failAt;
+        }
+
+        @Override
+        public ImageProcessor getProcessor(int n) {
+            if (n == failAt) throw new IllegalStateException("unreadable slice " + n);
+            return new ByteProcessor(8, 8);
+        }
+
+        @Override
+        public int getSize() {
+            return 5;
+        }
+    }
+}
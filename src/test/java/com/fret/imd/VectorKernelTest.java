@@ -0,0 +1,50 @@
+package com.fret.imd;
+
+import ij.*;
+import java.util.Arrays;
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The Vector API kernel shades exactly like the 2.0.1 renderer.
+ *
+ * With the Java 8 classes (mvn test) the kernel is unavailable and these
+ * tests are skipped. The vector-kernel profile runs the whole suite again
+ * on the multi-release JAR with jdk.incubator.vector and imd.test.vector=true,
+ * where the kernel must be in use.
+ */
+public class VectorKernelTest {
+
+    @Test
+    public void kernelIsAvailableWhenExpected() {
+        Assume.assumeTrue(Boolean.getBoolean("imd.test.vector"));
+        assertTrue(VectorKernel.describe(), VectorKernel.isAvailable());
+    }
+
+    @Test
+    public void shadeMatchesReference() {
+        Assume.assumeTrue(VectorKernel.isAvailable());
+        byte[][] lut = IMDLuts.get(IMDReference.LUT);
+        float fRmin = (float) IMDReference.RMIN, fRrange = (float) (IMDReference.RMAX - IMDReference.RMIN);
+        float fDmin = (float) IMDReference.DMIN, fDrange = (float) (IMDReference.DMAX - IMDReference.DMIN);
+        for (int bitDepth : new int[]{8, 16, 32}) {
+            ImageStack fret = IMDReference.stack(bitDepth, 67, 45, 1, 1);
+            ImageStack cfp = IMDReference.stack(bitDepth, 67, 45, 1, 2);
+            int size = 67 * 45;
+            for (String mask : IMDParameters.MASK_SOURCES) {
+                int[] expected = IMDReference.render(fret, cfp, mask)[0];
+                // Unaligned start and a partial last vector
+                int from = 3, to = size - 5;
+                int[] rgb = new int[size];
+                assertTrue(VectorKernel.shade(fret.getPixels(1), cfp.getPixels(1), rgb, from, to,
+                                              IMDEngine.maskMode(mask), fRmin, fRrange, fDmin, fDrange,
+                                              lut[0], lut[1], lut[2]));
+                assertArrayEquals(bitDepth + "-bit, " + mask,
+                                  Arrays.copyOfRange(expected, from, to), Arrays.copyOfRange(rgb, from, to));
+            }
+        }
+    }
+}